@@ -1,9 +1,11 @@
 package edu.uw.cs.cse461.consoleapps;
 
 import java.util.List;
+import java.util.Map;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
 
 /**
  * An application that prints the contents of the naming database used by the DDNS system. 
@@ -34,6 +36,14 @@ public class DumpServiceState extends NetLoadableConsoleApp {
 			else sb.append("\tNot loaded\n");
 		}
 
+		Map<String, TCPMessageHandlerStats> peers = TCPMessageHandlerStats.peers();
+		if ( !peers.isEmpty() ) {
+			sb.append("\nTraffic by peer:\n");
+			for ( Map.Entry<String, TCPMessageHandlerStats> peer : peers.entrySet() ) {
+				sb.append(peer.getKey()).append(": ").append(peer.getValue()).append("\n");
+			}
+		}
+
 		return sb.toString();
 	}
 	
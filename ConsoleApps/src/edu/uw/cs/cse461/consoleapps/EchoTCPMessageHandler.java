@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import edu.uw.cs.cse461.consoleapps.PingInterface.PingTCPMessageHandlerInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
@@ -56,11 +57,11 @@ public class EchoTCPMessageHandler extends NetLoadableConsoleApp {
 				try {
 					tcpSocket = new Socket(targetIP, targetTCPPort);
 					tcpMessageHandlerSocket = new TCPMessageHandler(tcpSocket);
+					tcpMessageHandlerSocket.stats().setOwner(loadablename());
 					tcpMessageHandlerSocket.setTimeout(socketTimeout);
 					tcpMessageHandlerSocket.setNoDelay(true);
 
-					tcpMessageHandlerSocket.sendMessage(EchoServiceBase.HEADER_STR);
-					tcpMessageHandlerSocket.sendMessage(msg);
+					tcpMessageHandlerSocket.sendMessages(Arrays.asList(EchoServiceBase.HEADER_BYTES, msg.getBytes()));
 					
 					// read response header
 					String headerStr = tcpMessageHandlerSocket.readMessageAsString();
@@ -0,0 +1,86 @@
+package edu.uw.cs.cse461.consoleapps;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+
+/**
+ * A ConsoleApp that measures the cost of dispatching an RPC to its handler, the way RPCService does it
+ * (RPCCallableMethod.handleCall()), against calling the handler reflectively (Method.invoke(), as
+ * RPCCallableMethod used to) and calling it directly.  The handler does nothing, so the times are
+ * pure dispatch overhead.
+ * <p>
+ * Each variant is run for some untimed warmup trials, so the JIT has compiled it, then for
+ * some timed ones.  The median and minimum over the timed trials are reported, in nsec per call.
+ */
+public class RPCDispatchBenchmark extends NetLoadableConsoleApp {
+	private static final int WARMUP_TRIALS = 10;
+	private static final int TIMED_TRIALS = 10;
+
+	private interface Variant {
+		public JSONObject call(JSONObject args) throws Exception;
+	}
+
+	private long mSink = 0;  // keeps the JIT from discarding calls whose results aren't used
+
+	/**
+	 * OSConsoleApp's must have a constructor taking no arguments.
+	 */
+	public RPCDispatchBenchmark() {
+		super("rpcdispatchbenchmark");
+	}
+
+	/**
+	 * The RPC callable method being dispatched to.
+	 */
+	public JSONObject _noop(JSONObject args) {
+		return args;
+	}
+
+	@Override
+	public void run() throws Exception {
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+		System.out.print("Enter calls per trial (default 1000000): ");
+		String line = console.readLine();
+		int nCalls = line == null || line.trim().isEmpty() ? 1000000 : Integer.parseInt(line.trim());
+
+		final JSONObject args = new JSONObject();
+		final Method method = getClass().getMethod("_noop", JSONObject.class);
+		final RPCCallableMethod callable = new RPCCallableMethod(this, "_noop");
+
+		_report("direct", nCalls, args, new Variant() {
+			@Override
+			public JSONObject call(JSONObject a) { return _noop(a); }
+		});
+		_report("Method.invoke", nCalls, args, new Variant() {
+			@Override
+			public JSONObject call(JSONObject a) throws Exception { return (JSONObject)method.invoke(RPCDispatchBenchmark.this, a); }
+		});
+		_report("RPCCallableMethod", nCalls, args, new Variant() {
+			@Override
+			public JSONObject call(JSONObject a) throws Exception { return callable.handleCall(a); }
+		});
+	}
+
+	private void _report(String name, int nCalls, JSONObject args, Variant variant) throws Exception {
+		for ( int i=0; i<WARMUP_TRIALS; i++ ) _trial(nCalls, args, variant);
+		double[] nsecPerCall = new double[TIMED_TRIALS];
+		for ( int i=0; i<TIMED_TRIALS; i++ ) nsecPerCall[i] = (double)_trial(nCalls, args, variant) / nCalls;
+		Arrays.sort(nsecPerCall);
+		System.out.println(String.format("%-20s median %6.2f nsec/call, min %6.2f nsec/call", name, nsecPerCall[TIMED_TRIALS/2], nsecPerCall[0]));
+	}
+
+	private long _trial(int nCalls, JSONObject args, Variant variant) throws Exception {
+		long start = System.nanoTime();
+		for ( int i=0; i<nCalls; i++ ) {
+			if ( variant.call(args) == args ) mSink++;
+		}
+		return System.nanoTime() - start;
+	}
+}
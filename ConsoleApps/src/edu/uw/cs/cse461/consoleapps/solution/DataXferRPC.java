@@ -1,8 +1,10 @@
 package edu.uw.cs.cse461.consoleapps.solution;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -11,6 +13,8 @@ import edu.uw.cs.cse461.consoleapps.DataXferInterface.DataXferRPCInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.rpc.RPCCall;
+import edu.uw.cs.cse461.net.rpc.RPCReply;
+import edu.uw.cs.cse461.net.rpc.RPCStream;
 import edu.uw.cs.cse461.service.EchoRPCService;
 import edu.uw.cs.cse461.service.EchoServiceBase;
 import edu.uw.cs.cse461.util.Base64;
@@ -92,6 +96,23 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInt
 			int timeout) throws JSONException, IOException {
 		// TODO Auto-generated method stub
 		JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, header);
+		String mode = NetBase.theNetBase().config().getProperty("dataxferrpc.mode", "json").trim();
+		// attachments carry the data as raw bytes, without Base64's inflation or encoding cost
+		if ( mode.equals("binary") ) {
+			RPCReply reply = RPCCall.invokeWithAttachments(hostIP, port, "dataxferrpc", "dataxferbinary", args, null, timeout);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			for ( ByteBuffer attachment : reply.attachments() ) data.write(attachment.array(), attachment.arrayOffset() + attachment.position(), attachment.remaining());
+			return data.toByteArray();
+		}
+		// streaming keeps the server's memory, and each message, to a chunk, however large the transfer
+		if ( mode.equals("stream") ) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			try ( RPCStream stream = RPCCall.invokeStream(hostIP, port, "dataxferrpc", "dataxferstream", args, timeout) ) {
+				JSONObject chunk;
+				while ( (chunk = stream.read()) != null ) data.write(Base64.decode(chunk.getString("data")));
+			}
+			return data.toByteArray();
+		}
 		JSONObject response = RPCCall.invoke(hostIP, port, "dataxferrpc", "dataxfer", args, timeout);
 		String dataString = response.getString("data");
 		byte[] data = Base64.decode(dataString);
@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -32,21 +34,19 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 		byte[] receivedBytes = new byte[xferLength];
 		Socket sock = new Socket(hostIP, port); 
 		TCPMessageHandler tcpMsgHandler = new TCPMessageHandler(sock);
+		tcpMsgHandler.stats().setOwner(loadablename());
 		tcpMsgHandler.setTimeout(timeout);
-		tcpMsgHandler.sendMessage(header);
 		JSONObject transferSize = new JSONObject().put("transferSize", xferLength);
-		tcpMsgHandler.sendMessage(transferSize);
+		tcpMsgHandler.sendMessages(Arrays.asList(header.getBytes(), transferSize.toString().getBytes()));
 		
 		String okayStr = tcpMsgHandler.readMessageAsString();
 		if (!okayStr.equals(DataXferServiceBase.RESPONSE_OKAY_STR)) 
 			throw new IOException("Server did not respond with the okay string");
 		
+		// each message is read straight into its place in receivedBytes
+		ByteBuffer receiveBuf = ByteBuffer.wrap(receivedBytes);
 		while (amtXferred < xferLength) {
-			byte[] receiveBuf = tcpMsgHandler.readMessageAsBytes();
-			for (int i = 0; i < receiveBuf.length; i++) {
-				receivedBytes[amtXferred + i] = receiveBuf[i];
-			}
-			amtXferred += receiveBuf.length;
+			amtXferred += tcpMsgHandler.readMessageInto(receiveBuf);
 		}
 		if (amtXferred != xferLength) 
 			throw new IOException("Server sent the wrong amount of data");
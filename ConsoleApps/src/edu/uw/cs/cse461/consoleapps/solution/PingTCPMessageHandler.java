@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import edu.uw.cs.cse461.consoleapps.PingInterface.PingTCPMessageHandlerInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
@@ -97,9 +98,9 @@ public class PingTCPMessageHandler extends NetLoadableConsoleApp implements Ping
 		
 		Socket tcpSocket = new Socket(hostIP, tcpPort);
 		TCPMessageHandler tcpMsgHandler = new TCPMessageHandler(tcpSocket);
+		tcpMsgHandler.stats().setOwner(loadablename());
 		tcpMsgHandler.setTimeout(socketTimeout);
-		tcpMsgHandler.sendMessage(header);		
-		tcpMsgHandler.sendMessage("");
+		tcpMsgHandler.sendMessages(Arrays.asList(header.getBytes(), new byte[0]));
 		
 		String okayStr = tcpMsgHandler.readMessageAsString();
 		if (!okayStr.equals(EchoServiceBase.RESPONSE_OKAY_STR)) 
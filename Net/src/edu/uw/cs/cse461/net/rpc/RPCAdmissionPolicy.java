@@ -0,0 +1,71 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * How many calls of a method (or of all the methods of a service) RPCService admits at once.  Pass
+ * one to RPCService.setAdmissionPolicy().  A call that arrives when its method or service is at its
+ * limit is refused at once, with an error the caller sees as an RPCOverloadedException, rather
+ * than queued behind calls that are already waiting.
+ * <p>
+ * A call is in flight from when it arrives until its reply is sent, and is queued while it waits for
+ * a thread to run it.  The limit on calls in flight is either fixed, or adapted to how long the method
+ * takes (AIMD): each call that takes longer than the target latency cuts the limit by a tenth, at most
+ * once per target latency, and each that doesn't raises it by 1/limit, up to the maximum.  So the limit
+ * settles around the concurrency at which the method still meets its target.
+ * <p>
+ * Usage:
+ * <pre>
+ *   rpc.setAdmissionPolicy("dataxferrpc", null, new RPCAdmissionPolicy().setMaxConcurrency(64).setMaxQueued(16));
+ *   rpc.setAdmissionPolicy("dns", "lookup", new RPCAdmissionPolicy().setMaxConcurrency(200).setTargetLatency(50));
+ * </pre>
+ */
+public class RPCAdmissionPolicy {
+	int mMaxConcurrency = 0;
+	int mMaxQueued = 0;
+	int mTargetLatency = 0;
+
+	/**
+	 * Sets the most calls in flight at once.  0 (the default) means no limit.
+	 * @return This policy
+	 */
+	public RPCAdmissionPolicy setMaxConcurrency(int maxConcurrency) {
+		if ( maxConcurrency < 0 ) throw new IllegalArgumentException("Negative concurrency limit");
+		mMaxConcurrency = maxConcurrency;
+		return this;
+	}
+
+	/**
+	 * Sets the most calls in flight that may be waiting for a thread.  0 (the default) means no limit
+	 * beyond the limit on calls in flight.
+	 * @return This policy
+	 */
+	public RPCAdmissionPolicy setMaxQueued(int maxQueued) {
+		if ( maxQueued < 0 ) throw new IllegalArgumentException("Negative queue limit");
+		mMaxQueued = maxQueued;
+		return this;
+	}
+
+	/**
+	 * Makes the limit on calls in flight adaptive, aiming for calls that take at most msec to run.
+	 * The maximum concurrency is then the highest the limit goes.  0 (the default) means a fixed limit.
+	 * @return This policy
+	 */
+	public RPCAdmissionPolicy setTargetLatency(int msec) {
+		if ( msec < 0 ) throw new IllegalArgumentException("Negative target latency");
+		mTargetLatency = msec;
+		return this;
+	}
+
+	/**
+	 * True if the policy limits nothing.
+	 */
+	boolean isUnlimited() {
+		return mMaxConcurrency == 0 && mMaxQueued == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "max " + (mMaxConcurrency == 0 ? "unlimited" : mMaxConcurrency) + " in flight"
+				+ (mMaxQueued == 0 ? "" : ", " + mMaxQueued + " queued")
+				+ (mTargetLatency == 0 ? "" : ", adaptive to " + mTargetLatency + " msec");
+	}
+}
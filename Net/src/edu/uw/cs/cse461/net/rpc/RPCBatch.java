@@ -0,0 +1,126 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A list of calls to send to one host as a single RPC message, with RPCCall.invokeBatch().
+ * The whole batch costs one request frame and one reply frame.
+ * <p>
+ * The server runs the calls in parallel, unless the batch is sequential, in which case it runs
+ * them one at a time, in order (for calls that depend on the effects of earlier ones).
+ * Each call succeeds or fails on its own; the results come back in the order the calls were added.
+ * <p>
+ * Usage:
+ * <pre>
+ *   RPCBatch batch = new RPCBatch().add("echorpc", "echo", args1).add("echorpc", "echo", args2);
+ *   for ( RPCBatch.Result result : RPCCall.invokeBatch(ip, port, batch, timeout) ) ... result.get() ...
+ * </pre>
+ */
+public class RPCBatch {
+	final ArrayList<String> mServices = new ArrayList<String>();
+	final ArrayList<String> mMethods = new ArrayList<String>();
+	final ArrayList<JSONObject> mArgs = new ArrayList<JSONObject>();
+	boolean mSequential = false;
+
+	/**
+	 * The outcome of one call in a batch.
+	 */
+	public static class Result {
+		private final JSONObject mValue;
+		private final String mError;
+		private final boolean mOverloaded;
+
+		private Result(JSONObject value, String error, boolean overloaded) {
+			mValue = value;
+			mError = error;
+			mOverloaded = overloaded;
+		}
+
+		/**
+		 * Returns true if the call succeeded.
+		 */
+		public boolean isOK() {
+			return mError == null;
+		}
+
+		/**
+		 * Returns what the remote method returned, or null if the call failed (or the method returned null).
+		 */
+		public JSONObject value() {
+			return mValue;
+		}
+
+		/**
+		 * Returns the server's error message, or null if the call succeeded.
+		 */
+		public String error() {
+			return mError;
+		}
+
+		/**
+		 * Returns true if the server refused the call, unperformed, because it was overloaded.
+		 */
+		public boolean isOverloaded() {
+			return mOverloaded;
+		}
+
+		/**
+		 * Returns what the remote method returned.
+		 * @throws IOException If the call failed (an RPCOverloadedException if it was refused)
+		 */
+		public JSONObject get() throws IOException {
+			if ( mOverloaded ) throw new RPCOverloadedException("RPC call failed: " + mError);
+			if ( mError != null ) throw new RPCRemoteException("RPC call failed: " + mError);
+			return mValue;
+		}
+
+		@Override
+		public String toString() {
+			return mError == null ? "OK " + mValue : "ERROR " + mError;
+		}
+	}
+
+	/**
+	 * Adds a call of method() of serviceName to the batch.
+	 * @return This batch
+	 */
+	public RPCBatch add(String serviceName, String method, JSONObject args) {
+		mServices.add(serviceName);
+		mMethods.add(method);
+		mArgs.add(args);
+		return this;
+	}
+
+	/**
+	 * Asks the server to run the calls one at a time, in order, rather than in parallel.
+	 * @return This batch
+	 */
+	public RPCBatch setSequential(boolean sequential) {
+		mSequential = sequential;
+		return this;
+	}
+
+	public int size() {
+		return mServices.size();
+	}
+
+	/**
+	 * Decodes the value of a batch reply.
+	 */
+	static List<Result> results(JSONObject value) throws JSONException {
+		JSONArray results = value.getJSONArray("results");
+		ArrayList<Result> list = new ArrayList<Result>(results.length());
+		for ( int i=0; i<results.length(); i++ ) {
+			JSONObject result = results.getJSONObject(i);
+			if ( result.getString("type").equals("OK") ) list.add(new Result(result.optJSONObject("value"), null, false));
+			else list.add(new Result(null, result.optString("message"), result.optBoolean("overloaded")));
+		}
+		return list;
+	}
+}
@@ -0,0 +1,130 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * How RPCService caches the results of an idempotent method: one whose result depends only on its
+ * arguments, and that has no effects a repeated call would miss.  Pass one to
+ * RPCService.registerHandler(), and calls with the same arguments as a recent call are answered
+ * with that call's result, without calling the method.
+ * <p>
+ * Only normal results are cached; a call that fails is tried again next time.  So are calls that
+ * carry attachments (see RPCCallContext) or whose replies do.  A cached result is shared by every
+ * caller it's sent to, so the method must not modify it after returning it.
+ * <p>
+ * Usage:
+ * <pre>
+ *   rpc.registerHandler("dns", "lookup", method, new RPCCachePolicy().setTTL(5000).setMaxEntries(10000));
+ * </pre>
+ */
+public class RPCCachePolicy {
+
+	/**
+	 * Derives a call's cache key from its arguments.  Calls with equal keys get the same result.
+	 */
+	public interface KeyFunction {
+		/**
+		 * @return The key, or null if this call's result shouldn't be cached
+		 */
+		public String key(JSONObject args) throws Exception;
+	}
+
+	/**
+	 * The default KeyFunction: the arguments as JSON text, with every object's keys in sorted order,
+	 * so that equal arguments have equal keys however they were built.
+	 */
+	public static final KeyFunction ALL_ARGS = new KeyFunction() {
+		@Override
+		public String key(JSONObject args) throws JSONException {
+			StringBuilder sb = new StringBuilder();
+			_canonical(args, sb);
+			return sb.toString();
+		}
+	};
+
+	int mTTL = 0;
+	int mMaxEntries = 1024;
+	long mMaxBytes = 0;
+	KeyFunction mKey = ALL_ARGS;
+
+	/**
+	 * Sets how long, in msec, a result may be reused.  0 (the default) means until it's evicted.
+	 * @return This policy
+	 */
+	public RPCCachePolicy setTTL(int msec) {
+		if ( msec < 0 ) throw new IllegalArgumentException("Negative TTL");
+		mTTL = msec;
+		return this;
+	}
+
+	/**
+	 * Sets the most results to keep (1024 by default).  When the cache is full, the least
+	 * recently used result is evicted.
+	 * @return This policy
+	 */
+	public RPCCachePolicy setMaxEntries(int maxEntries) {
+		if ( maxEntries < 1 ) throw new IllegalArgumentException("A cache must hold at least one entry");
+		mMaxEntries = maxEntries;
+		return this;
+	}
+
+	/**
+	 * Sets a bound on the total size of the cached results, measured as the length of their JSON text.
+	 * 0 (the default) means no bound beyond the number of entries.  A result larger than the bound isn't cached.
+	 * @return This policy
+	 */
+	public RPCCachePolicy setMaxBytes(long maxBytes) {
+		if ( maxBytes < 0 ) throw new IllegalArgumentException("Negative cache size");
+		mMaxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Sets how a call's cache key is derived from its arguments.  By default it's all of them (ALL_ARGS).
+	 * @return This policy
+	 */
+	public RPCCachePolicy setKey(KeyFunction key) {
+		mKey = key;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "ttl " + (mTTL == 0 ? "none" : mTTL + " msec") + ", max " + mMaxEntries + " entries"
+				+ (mMaxBytes == 0 ? "" : " / " + mMaxBytes + " bytes");
+	}
+
+	private static void _canonical(Object value, StringBuilder sb) throws JSONException {
+		if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			ArrayList<String> keys = new ArrayList<String>();
+			for ( Iterator<?> it = obj.keys(); it.hasNext(); ) keys.add((String)it.next());
+			Collections.sort(keys);
+			sb.append('{');
+			for ( int i=0; i<keys.size(); i++ ) {
+				if ( i > 0 ) sb.append(',');
+				sb.append(JSONObject.quote(keys.get(i))).append(':');
+				_canonical(obj.get(keys.get(i)), sb);
+			}
+			sb.append('}');
+		} else if ( value instanceof JSONArray ) {
+			JSONArray array = (JSONArray)value;
+			sb.append('[');
+			for ( int i=0; i<array.length(); i++ ) {
+				if ( i > 0 ) sb.append(',');
+				_canonical(array.get(i), sb);
+			}
+			sb.append(']');
+		} else if ( value == null ) {
+			sb.append("null");
+		} else {
+			sb.append(JSONObject.valueToString(value));
+		}
+	}
+}
@@ -1,20 +1,31 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.SocketException;
-import java.util.Collection;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
 import edu.uw.cs.cse461.util.Log;
 
 /**
@@ -26,7 +37,7 @@ import edu.uw.cs.cse461.util.Log;
  * This class is responsible for implementing persistent connections. 
  * (What you might think of as the actual remote call code is in RCPCallerSocket.java.)
  * Implementing persistence requires keeping a cache that must be cleaned periodically.
- * We do that using a cleaner thread.
+ * We do that using a cleaner thread.  The cache, and its cleaner, are in RPCConnectionPool.java.
  * 
  * @author zahorjan
  *
@@ -34,7 +45,12 @@ import edu.uw.cs.cse461.util.Log;
 public class RPCCall extends NetLoadableService {
 	private static final String TAG="RPCCall";
 	
-	private final HashMap<String, RPCCallerSocket> connections = new HashMap<String, RPCCallerSocket>();
+	private final RPCConnectionPool connections;
+	private final int streamWindow;
+	private final int hedgePercentile;
+	private final double hedgeBudget;
+	// the logical endpoints called so far, by name; each is read from the config file when first called
+	private final ConcurrentHashMap<String, RPCEndpointGroup> endpoints = new ConcurrentHashMap<String, RPCEndpointGroup>();
 
 
 	//-------------------------------------------------------------------------------------------
@@ -50,7 +66,8 @@ public class RPCCall extends NetLoadableService {
 	 * @param serviceName Name of service to be invoked
 	 * @param method Name of method of the service to invoke
 	 * @param userRequest Arguments to call
-	 * @param socketTimeout Maximum time to wait for a response, in msec.
+	 * @param socketTimeout Maximum time to wait for a response, in msec.  The server is told, and
+	 *        drops the call if it hasn't started it by then (see RPCCallContext).
 	 * @return Returns whatever the remote method returns.
 	 * @throws JSONException
 	 * @throws IOException
@@ -84,6 +101,232 @@ public class RPCCall extends NetLoadableService {
 		return invoke(ip, port, serviceName, method, userRequest, socketTimeout);
 	}
 
+	/**
+	 * Invokes method() on serviceName located on remote host ip:port, without waiting for the result.
+	 * This lets one thread have many calls outstanding, and compose their results as they arrive.
+	 * <p>
+	 * The calling thread sends the request (and, if there's no connection to ip yet, makes one).
+	 * The future is completed on an RPC I/O thread, so actions attached to it with thenApply() and the
+	 * like run there; they should be quick and must not block.  Use the async variants to run them elsewhere.
+	 * @param socketTimeout Maximum time to wait for a response, in msec.
+	 * @return A future completed with whatever the remote method returns.  It fails with a
+	 *         SocketTimeoutException if the call times out, and an IOException if the call fails.
+	 */
+	public static CompletableFuture<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) return RPCCall.<JSONObject>_failed(new IOException("RPCCall.invokeAsync() called but the RPCCall service isn't loaded"));
+		return rpcCallObj._invokeAsync(ip, port, serviceName, method, userRequest, socketTimeout, true);
+	}
+
+	/**
+	 * A convenience implementation of invokeAsync() that takes its timeout from the config file,
+	 * as invoke() does.
+	 */
+	public static CompletableFuture<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest    // arguments to send to remote method,
+			) {
+		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
+		return invokeAsync(ip, port, serviceName, method, userRequest, socketTimeout);
+	}
+
+	/**
+	 * Invokes method() of serviceName on one of the servers of a logical endpoint: a group of
+	 * replicas configured as rpc.endpoints.&lt;endpoint&gt; (see RPCEndpointGroup).  The server is picked
+	 * per call, by the group's load balancing policy.  Otherwise like invoke().
+	 * @param endpoint The name of the endpoint group
+	 * @throws IOException If the call fails, or there's no such endpoint
+	 */
+	public static JSONObject invokeEndpoint(
+			String endpoint,          // name of the group of servers
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) throws IOException {
+		return _await(invokeEndpointAsync(endpoint, serviceName, method, userRequest, socketTimeout), serviceName + "." + method + " call");
+	}
+
+	/**
+	 * The asynchronous form of invokeEndpoint().  The future completes as invokeAsync()'s does.
+	 */
+	public static CompletableFuture<JSONObject> invokeEndpointAsync(
+			String endpoint,          // name of the group of servers
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) return RPCCall.<JSONObject>_failed(new IOException("RPCCall.invokeEndpointAsync() called but the RPCCall service isn't loaded"));
+		RPCEndpointGroup group;
+		try {
+			group = rpcCallObj._endpoint(endpoint);
+		} catch (IOException e) {
+			return _failed(e);
+		}
+		return rpcCallObj._invokeServerAsync(group.pick(), serviceName, method, userRequest, socketTimeout, RPCMessage.nextId(), null);
+	}
+
+	/**
+	 * Like invokeEndpoint(), but hedged: if the reply hasn't come by the time most calls of the method have
+	 * had theirs (the rpc.hedge.percentile percentile of their recent times), the call is sent again, to
+	 * another server of the group.  Whichever reply comes first is the call's, and the other attempt is
+	 * cancelled.  So one slow server doesn't make a slow call.  Hedges are limited to rpc.hedge.budget
+	 * percent of calls, so that when every server is slow, hedging doesn't add much to their load.
+	 * <p>
+	 * For idempotent methods only, since both attempts may be performed.
+	 * @throws IOException If every attempt fails, or there's no such endpoint
+	 */
+	public static JSONObject invokeHedged(
+			String endpoint,          // name of the group of servers
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) throws IOException {
+		return _await(invokeHedgedAsync(endpoint, serviceName, method, userRequest, socketTimeout), serviceName + "." + method + " call");
+	}
+
+	/**
+	 * The asynchronous form of invokeHedged().  The future completes as invokeAsync()'s does.
+	 */
+	public static CompletableFuture<JSONObject> invokeHedgedAsync(
+			String endpoint,          // name of the group of servers
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) return RPCCall.<JSONObject>_failed(new IOException("RPCCall.invokeHedgedAsync() called but the RPCCall service isn't loaded"));
+		RPCEndpointGroup group;
+		try {
+			group = rpcCallObj._endpoint(endpoint);
+		} catch (IOException e) {
+			return _failed(e);
+		}
+		return rpcCallObj.new HedgedCall(group, serviceName, method, userRequest, socketTimeout).start();
+	}
+
+	/**
+	 * Sends the calls in batch to ip:port as a single message, and waits for all their results.
+	 * @param socketTimeout Maximum time to wait for the whole batch, in msec.
+	 * @return The result of each call, in the order they were added to the batch.  Each call succeeds
+	 *         or fails on its own.
+	 * @throws IOException If the batch as a whole fails (e.g., times out)
+	 */
+	public static List<RPCBatch.Result> invokeBatch(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			RPCBatch batch,           // the calls
+			int socketTimeout         // timeout for the whole batch, in msec.
+			) throws IOException {
+		return _await(invokeBatchAsync(ip, port, batch, socketTimeout), "batch of " + batch.size() + " calls");
+	}
+
+	/**
+	 * Sends the calls in batch to ip:port as a single message, without waiting for the results.
+	 * The future completes as invokeAsync()'s does.
+	 */
+	public static CompletableFuture<List<RPCBatch.Result>> invokeBatchAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			final RPCBatch batch,     // the calls
+			final int socketTimeout   // timeout for the whole batch, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) return RPCCall.<List<RPCBatch.Result>>_failed(new IOException("RPCCall.invokeBatchAsync() called but the RPCCall service isn't loaded"));
+		final int callid = RPCMessage.nextId();
+		return rpcCallObj._callAsync(ip, port, socketTimeout, true, new Call<JSONObject>() {
+			@Override
+			public CompletableFuture<JSONObject> on(RPCCallerSocket rpcSock, int timeout) {
+				return rpcSock.invokeBatchAsync(batch, timeout, callid);
+			}
+		}).thenApply(value -> {
+			try {
+				return RPCBatch.results(value);
+			} catch (JSONException e) {
+				throw new CompletionException(new IOException("Unparsable batch reply", e));
+			}
+		});
+	}
+
+	/**
+	 * Like invoke(), but sends attachments (binary buffers; possibly null) along with userRequest, and
+	 * returns any attachments the remote method adds to its reply.  The remote method gets the attachments,
+	 * and adds its own, through RPCCallContext.  Attachments are sent as raw bytes, not Base64 encoded
+	 * in the JSON.  Each must fit in a message (tcpmessagehandler.maxmsglength).
+	 * @throws IOException
+	 */
+	public static RPCReply invokeWithAttachments(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method
+			List<ByteBuffer> attachments, // binary arguments
+			int socketTimeout         // timeout for this call, in msec.
+			) throws IOException {
+		return _await(invokeWithAttachmentsAsync(ip, port, serviceName, method, userRequest, attachments, socketTimeout), serviceName + "." + method + " call");
+	}
+
+	/**
+	 * The asynchronous form of invokeWithAttachments().  The future completes as invokeAsync()'s does.
+	 */
+	public static CompletableFuture<RPCReply> invokeWithAttachmentsAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			final String serviceName, // name of the remote service
+			final String method,      // name of that service's method to invoke
+			final JSONObject userRequest, // arguments to send to remote method
+			final List<ByteBuffer> attachments, // binary arguments
+			final int socketTimeout   // timeout for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) return RPCCall.<RPCReply>_failed(new IOException("RPCCall.invokeWithAttachmentsAsync() called but the RPCCall service isn't loaded"));
+		final int callid = RPCMessage.nextId();
+		return rpcCallObj._callAsync(ip, port, socketTimeout, true, new Call<RPCReply>() {
+			@Override
+			public CompletableFuture<RPCReply> on(RPCCallerSocket rpcSock, int timeout) {
+				return rpcSock.invokeWithAttachmentsAsync(serviceName, method, userRequest, attachments, timeout, callid);
+			}
+		});
+	}
+
+	/**
+	 * Invokes a streaming method (see RPCCallableMethod.StreamHandler) of serviceName on ip:port.  Returns
+	 * as soon as the invocation is sent; the result is read, a chunk at a time, from the returned RPCStream,
+	 * which must be closed.  At most rpc.stream.window chunks are buffered, waiting to be read.
+	 * <p>
+	 * The invocation is retried once on a new connection if the one it's sent on turns out to have failed.
+	 * Once chunks are flowing, a failure is reported by the stream, and the call isn't retried.
+	 * @param socketTimeout Maximum time to wait for each chunk, in msec.
+	 * @throws IOException If the invocation can't be sent
+	 */
+	public static RPCStream invokeStream(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's streaming method to invoke
+			JSONObject userRequest,   // arguments to send to remote method
+			int socketTimeout         // timeout for each chunk, in msec.
+			) throws IOException {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) throw new IOException("RPCCall.invokeStream() called but the RPCCall service isn't loaded");
+		return rpcCallObj._invokeStream(ip, port, serviceName, method, userRequest, socketTimeout, true);
+	}
+
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
 	
@@ -92,12 +335,19 @@ public class RPCCall extends NetLoadableService {
 	 */
 	public RPCCall() {
 		super("rpccall");
+		connections = new RPCConnectionPool();
+		streamWindow = NetBase.theNetBase().config().getAsInt("rpc.stream.window", 16, 1);
+		hedgePercentile = NetBase.theNetBase().config().getAsInt("rpc.hedge.percentile", 95, 1, 99);
+		hedgeBudget = NetBase.theNetBase().config().getAsInt("rpc.hedge.budget", 5, 0, 100) / 100.0;
 	}
 
 	/**
 	 * This private method performs the actual invocation, including the management of persistent connections.
-	 * Note that because we may issue the call twice, we  may (a) cause it to be executed twice at the server(!),
-	 * and (b) may end up blocking the caller for around twice the timeout specified in the call. (!)
+	 * Note that because we may issue the call twice, we may end up blocking the caller for around twice the
+	 * timeout specified in the call. (!)  Both attempts carry the same id, so a server that remembers replies
+	 * (see RPCReplayCache) executes the call at most once; any other server may execute it twice(!).
+	 * The call is retried only if the connection fails under it (e.g., the server has closed a persistent
+	 * connection we thought was still open), not if it times out or the remote method fails.
 	 * 
 	 * @param ip
 	 * @param port
@@ -119,41 +369,277 @@ public class RPCCall extends NetLoadableService {
 			int socketTimeout,        // max time to wait for reply
 			boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
 			) throws JSONException, IOException {
+		return _await(_invokeAsync(ip, port, serviceName, method, userRequest, socketTimeout, tryAgain), serviceName + "." + method + " call");
+	}
+
+	/**
+	 * The implementation of both invoke() and invokeAsync().  See _invoke() for the retry policy.
+	 */
+	private CompletableFuture<JSONObject> _invokeAsync(
+			String ip,
+			int port,
+			final String serviceName,
+			final String method,
+			final JSONObject userRequest,
+			final int socketTimeout,
+			boolean tryAgain
+			) {
+		final int callid = RPCMessage.nextId();
+		return _callAsync(ip, port, socketTimeout, tryAgain, new Call<JSONObject>() {
+			@Override
+			public CompletableFuture<JSONObject> on(RPCCallerSocket rpcSock, int timeout) {
+				return rpcSock.invokeWithAttachmentsAsync(serviceName, method, userRequest, null, timeout, callid).thenApply(RPCReply::value);
+			}
+		});
+	}
+
+	/**
+	 * Something to send on a connection (an invocation or a batch), and the type of its result.
+	 */
+	private interface Call<T> {
+		public CompletableFuture<T> on(RPCCallerSocket rpcSock, int timeout);
+	}
+
+	/**
+	 * Makes call on a connection to ip:port, retrying once on a new connection if tryAgain is true
+	 * and the connection fails under it.  A call that times out, or that the server answers with an
+	 * error, isn't retried.  A retry is made from the thread that discovers the failure.
+	 * <p>
+	 * A call made while handling an RPC call times out no later than that call's caller does (see
+	 * RPCCallContext.remainingTime()), and isn't made at all if that caller has given up.
+	 */
+	private <T> CompletableFuture<T> _callAsync(String ip, int port, int socketTimeout, boolean tryAgain, Call<T> call) {
+		RPCCallContext context = RPCCallContext.current();
+		if ( context != null ) {
+			String cancelled = context.cancelReason();
+			if ( cancelled != null ) return _failed(new SocketTimeoutException("Not calling " + ip + ": " + cancelled));
+			socketTimeout = (int)Math.min(socketTimeout, context.remainingTime());
+			// the deadline may have passed since it was checked, and a timeout of 0 would mean none at all
+			if ( socketTimeout <= 0 ) return _failed(new SocketTimeoutException("Not calling " + ip + ": Deadline exceeded"));
+		}
+		final int timeout = socketTimeout;
+		RPCCallerSocket rpcSock;
 		try {
-			RPCCallerSocket rpcSock = null;
-			if (connections.containsKey(ip)) {
-				rpcSock = connections.get(ip);
+			rpcSock = connections.acquire(ip, port, timeout);
+		} catch (IOException e) {
+			return _failed(e);
+		} catch (JSONException e) {
+			return _failed(new IOException("RPC handshake with " + ip + " failed", e));
+		}
+		return call.on(rpcSock, timeout).handle((value, e) -> {
+			if ( e == null ) return CompletableFuture.completedFuture(value);
+			if ( !rpcSock.hasFailed() ) return RPCCall.<T>_failed(e);
+			connections.remove(ip, port, rpcSock);
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			if ( !tryAgain || cause instanceof RPCRemoteException || cause instanceof SocketTimeoutException ) return RPCCall.<T>_failed(e);
+			return _callAsync(ip, port, timeout, false, call);
+		}).thenCompose(f -> f);
+	}
+
+	/**
+	 * Calls server, one of an endpoint group's, keeping its load and latency estimates up to date.
+	 * @param callid The call's id, from RPCMessage.nextId()
+	 * @param sent If not null, set to the connection the call is sent on, so that it can be cancelled
+	 */
+	private CompletableFuture<JSONObject> _invokeServerAsync(final RPCEndpointGroup.Server server, final String serviceName, final String method,
+			final JSONObject userRequest, final int socketTimeout, final int callid, final AtomicReference<RPCCallerSocket> sent) {
+		server.begin();
+		final long start = System.currentTimeMillis();
+		return _callAsync(server.mIP, server.mPort, socketTimeout, true, new Call<JSONObject>() {
+			@Override
+			public CompletableFuture<JSONObject> on(RPCCallerSocket rpcSock, int timeout) {
+				if ( sent != null ) sent.set(rpcSock);
+				return rpcSock.invokeWithAttachmentsAsync(serviceName, method, userRequest, null, timeout, callid).thenApply(RPCReply::value);
+			}
+		}).whenComplete((value, e) -> {
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			if ( cause instanceof CancellationException ) {
+				server.abandon();
+				return;
+			}
+			// a call that got no answer tells us nothing of the server's speed, except that it's no good now
+			boolean failed = cause != null && (!(cause instanceof RPCRemoteException) || cause instanceof RPCOverloadedException);
+			server.end(failed ? socketTimeout : System.currentTimeMillis() - start, failed);
+		});
+	}
+
+	/**
+	 * One call made with invokeHedged(): its first attempt, and its hedge, if it gets one.  The first
+	 * reply is the call's, and the other attempt is then cancelled.  The call fails only if every
+	 * attempt made fails.
+	 */
+	private class HedgedCall {
+		private final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+		private final RPCEndpointGroup group;
+		private final RPCHedging hedging;
+		private final String serviceName;
+		private final String method;
+		private final JSONObject userRequest;
+		private final long begun;
+		private final long deadline;
+		// guarded by this
+		private final ArrayList<Attempt> attempts = new ArrayList<Attempt>(2);
+		private int outstanding = 0;
+		private boolean done = false;
+
+		private class Attempt {
+			final RPCEndpointGroup.Server server;
+			final int callid = RPCMessage.nextId();
+			final AtomicReference<RPCCallerSocket> sent = new AtomicReference<RPCCallerSocket>();
+
+			Attempt(RPCEndpointGroup.Server server) {
+				this.server = server;
+			}
+
+			void cancel() {
+				// an attempt still connecting can't be cancelled; its reply is ignored
+				RPCCallerSocket rpcSock = sent.get();
+				if ( rpcSock != null ) rpcSock.cancel(callid);
+			}
+		}
+
+		HedgedCall(RPCEndpointGroup group, String serviceName, String method, JSONObject userRequest, int socketTimeout) {
+			this.group = group;
+			this.hedging = group.hedging(serviceName, method, hedgePercentile, hedgeBudget);
+			this.serviceName = serviceName;
+			this.method = method;
+			this.userRequest = userRequest;
+			// a hedge gets whatever is left of the call's time, including its caller's (see _callAsync()).
+			// If that's none, start() fails the call rather than make an attempt with a timeout of 0.
+			RPCCallContext context = RPCCallContext.current();
+			if ( context != null ) socketTimeout = (int)Math.min(socketTimeout, context.remainingTime());
+			this.begun = System.currentTimeMillis();
+			this.deadline = begun + socketTimeout;
+		}
+
+		CompletableFuture<JSONObject> start() {
+			long delay = hedging.begin();
+			Attempt first = _attempt(group.pick(), false);
+			if ( first == null ) {
+				result.completeExceptionally(new SocketTimeoutException("Not calling " + serviceName + "." + method + ": no time left"));
+				return result;
+			}
+			if ( delay >= 0 && System.currentTimeMillis() + delay < deadline ) {
+				// from the timer thread to another, since sending the hedge may mean connecting
+				ScheduledFuture<?> hedge = RPCCallerSocket.sharedTimer().schedule(
+						() -> ForkJoinPool.commonPool().execute(() -> _hedge(first)), delay, TimeUnit.MILLISECONDS);
+				result.whenComplete((value, e) -> hedge.cancel(false));
+			}
+			return result;
+		}
+
+		private void _hedge(Attempt first) {
+			if ( result.isDone() || !hedging.tryHedge() ) return;
+			_attempt(group.pickOther(first.server), true);
+		}
+
+		/**
+		 * Sends an attempt at the call, unless the call is already done.
+		 */
+		private Attempt _attempt(RPCEndpointGroup.Server server, boolean isHedge) {
+			int timeout = (int)(deadline - System.currentTimeMillis());
+			Attempt attempt = new Attempt(server);
+			synchronized(this) {
+				if ( done || timeout <= 0 ) return null;
+				attempts.add(attempt);
+				outstanding++;
+			}
+			_invokeServerAsync(server, serviceName, method, userRequest, timeout, attempt.callid, attempt.sent)
+				.whenComplete((value, e) -> _attemptDone(attempt, isHedge, value, e));
+			return attempt;
+		}
+
+		private void _attemptDone(Attempt attempt, boolean isHedge, JSONObject value, Throwable e) {
+			synchronized(this) {
+				outstanding--;
+				// a failure is the call's only if there's no other attempt left to succeed
+				if ( done || (e != null && outstanding > 0) ) return;
+				done = true;
+			}
+			// the call's time is from its first attempt, which the hedge may have raced.  A call that got
+			// no answer (or was refused as overloaded) counts as having taken all its time: leaving it out
+			// would make the servers look faster just when they're slowest.
+			long msec = System.currentTimeMillis() - begun;
+			if ( e == null ) {
+				hedging.record(msec, isHedge);
+				result.complete(value);
 			} else {
-				rpcSock = new RPCCallerSocket(ip, port, socketTimeout, false);
-				connections.put(ip, rpcSock);
+				Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+				boolean answered = cause instanceof RPCRemoteException && !(cause instanceof RPCOverloadedException);
+				hedging.record(answered ? msec : deadline - begun, false);
+				result.completeExceptionally(cause);
 			}
-			JSONObject obj = rpcSock.invoke(serviceName, method, userRequest);
-			return obj;
-		} catch (JSONException e) {
-			if (tryAgain) {
-				connections.remove(ip).discard();
-				return _invoke(ip, port, serviceName, method, userRequest, socketTimeout, false);
+			for ( Attempt other : attempts ) {
+				if ( other != attempt ) other.cancel();
 			}
-			throw e;
+		}
+	}
+
+	/**
+	 * Returns the named endpoint group, reading it from the config file the first time it's asked for.
+	 */
+	private RPCEndpointGroup _endpoint(String name) throws IOException {
+		RPCEndpointGroup group = endpoints.get(name);
+		if ( group != null ) return group;
+		group = RPCEndpointGroup.fromConfig(NetBase.theNetBase().config(), name);
+		RPCEndpointGroup raced = endpoints.putIfAbsent(name, group);
+		return raced == null ? group : raced;
+	}
+
+	private RPCStream _invokeStream(String ip, int port, String serviceName, String method, JSONObject userRequest,
+			int socketTimeout, boolean tryAgain) throws IOException {
+		RPCCallerSocket rpcSock;
+		try {
+			rpcSock = connections.acquire(ip, port, socketTimeout);
+		} catch (JSONException e) {
+			throw new IOException("RPC handshake with " + ip + " failed", e);
+		}
+		try {
+			return rpcSock.invokeStream(serviceName, method, userRequest, streamWindow, socketTimeout);
 		} catch (IOException e) {
-			if (tryAgain) {
-				connections.remove(ip).discard();
-				return _invoke(ip, port, serviceName, method, userRequest, socketTimeout, false);
-			}
-			throw e;
+			// as in _callAsync(), only a failed connection is worth another try
+			if ( !rpcSock.hasFailed() ) throw e;
+			connections.remove(ip, port, rpcSock);
+			if ( !tryAgain || e instanceof RPCRemoteException || e instanceof SocketTimeoutException ) throw e;
+			return _invokeStream(ip, port, serviceName, method, userRequest, socketTimeout, false);
 		}
 	}
-	
+
+	/**
+	 * Waits for a call's future, turning its failure back into the exception it holds.
+	 * @param what Describes the call, for an InterruptedIOException
+	 */
+	private static <T> T _await(CompletableFuture<T> future, String what) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for reply to " + what);
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static <T> CompletableFuture<T> _failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
 	@Override
 	public void shutdown() {
-		Collection<RPCCallerSocket> cons = connections.values();
-		for (RPCCallerSocket sock: cons) {
-			sock.discard();
-		}
+		connections.shutdown();
+		super.shutdown();
 	}
 	
 	@Override
 	public String dumpState() {
-		return "Current persistent connections are ...";
+		StringBuilder sb = new StringBuilder("Current persistent connections are ");
+		sb.append(connections.describe());
+		sb.append("\nHedging: after the p").append(hedgePercentile).append(" call time, for at most ")
+		  .append(Math.round(hedgeBudget * 100)).append("% extra calls");
+		for ( RPCEndpointGroup group : endpoints.values() ) sb.append("\nEndpoint ").append(group);
+		sb.append("\nTraffic: ").append(TCPMessageHandlerStats.forService(loadablename()));
+		return sb.toString();
 	}
 }
@@ -0,0 +1,154 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What an RPC method can learn about the call it's handling, beyond its JSON arguments, and what it
+ * can return beyond its JSON result.  A method gets the context of its call with current().
+ * <p>
+ * Binary data is best passed as attachments: raw frames sent alongside the JSON, without Base64
+ * encoding.  attachments() are the caller's (see RPCCall.invokeWithAttachments()); attach() adds
+ * attachments to the reply.
+ * <p>
+ * A call is cancelled when its caller stops waiting for the reply: when the caller's timeout (which
+ * the invocation carries) expires, or the caller says so.  A call cancelled before it starts isn't
+ * performed.  One that's running isn't stopped, but a long-running method should check isCancelled()
+ * now and then, and give up if it's true, since no one will see its result.  RPCCall calls made while
+ * handling a call time out no later than the call itself would.
+ */
+public class RPCCallContext {
+	private static final ThreadLocal<RPCCallContext> current = new ThreadLocal<RPCCallContext>();
+
+	private final List<ByteBuffer> mAttachments;
+	private List<ByteBuffer> mReplyAttachments = Collections.emptyList();
+	private RPCCallContext mOuter;
+	private final long mDeadline;          // System.currentTimeMillis() time; 0 for none
+	private final RPCCallContext mBatch;   // the context of the batch this call is part of, or null
+	private volatile String mCancelled = null;   // why, once cancelled
+	// the admission limiters the call holds (see RPCAdmissionPolicy), and when it started running
+	private RPCLimiter[] mLimiters = RPCLimiter.NONE;
+	private long mStarted = 0;
+
+	/**
+	 * @param deadline When the caller stops waiting, as a System.currentTimeMillis() time; 0 for never
+	 */
+	RPCCallContext(List<ByteBuffer> attachments, long deadline) {
+		mAttachments = attachments;
+		mDeadline = deadline;
+		mBatch = null;
+	}
+
+	/**
+	 * The context of a call in a batch, which is cancelled when the batch is.
+	 */
+	RPCCallContext(RPCCallContext batch) {
+		mAttachments = Collections.emptyList();
+		mDeadline = batch.mDeadline;
+		mBatch = batch;
+	}
+
+	/**
+	 * Returns the context of the call this thread is handling, or null if it isn't handling one.
+	 */
+	public static RPCCallContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Returns the attachments the caller sent, in order.  The list can't be modified.
+	 */
+	public List<ByteBuffer> attachments() {
+		return mAttachments;
+	}
+
+	/**
+	 * Adds an attachment to the reply.  It's sent from its position to its limit, so it must not
+	 * be modified until the method returns.
+	 */
+	public void attach(ByteBuffer attachment) {
+		if ( mReplyAttachments.isEmpty() ) mReplyAttachments = new ArrayList<ByteBuffer>();
+		mReplyAttachments.add(attachment);
+	}
+
+	List<ByteBuffer> replyAttachments() {
+		return mReplyAttachments;
+	}
+
+	/**
+	 * True if the caller is no longer waiting for the reply.
+	 */
+	public boolean isCancelled() {
+		return cancelReason() != null;
+	}
+
+	/**
+	 * Returns the time left, in msec, until the caller stops waiting (possibly 0), or Long.MAX_VALUE
+	 * if the caller gave no timeout.
+	 */
+	public long remainingTime() {
+		if ( mDeadline == 0 ) return Long.MAX_VALUE;
+		return Math.max(0, mDeadline - System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns why the call was cancelled, or null if it hasn't been.
+	 */
+	String cancelReason() {
+		if ( mCancelled != null ) return mCancelled;
+		if ( mBatch != null && mBatch.mCancelled != null ) return mBatch.mCancelled;
+		if ( mDeadline != 0 && System.currentTimeMillis() >= mDeadline ) return "Deadline exceeded";
+		return null;
+	}
+
+	/**
+	 * Admits the call past limiters, unless any of them is at its limit.  An admitted call must be released().
+	 * @return True if the call is admitted
+	 */
+	boolean admit(RPCLimiter[] limiters) {
+		if ( !RPCLimiter.tryAcquire(limiters) ) return false;
+		mLimiters = limiters;
+		return true;
+	}
+
+	/**
+	 * Notes that the call has started running.
+	 */
+	void start() {
+		mStarted = System.currentTimeMillis();
+		for ( RPCLimiter limiter : mLimiters ) limiter.start();
+	}
+
+	/**
+	 * Releases the limiters that admitted the call.
+	 * @param measure False if how long the call ran shouldn't count toward the limiters' latency
+	 */
+	void release(boolean measure) {
+		long latency = mStarted == 0 || !measure ? -1 : System.currentTimeMillis() - mStarted;
+		for ( RPCLimiter limiter : mLimiters ) limiter.release(latency, mStarted != 0);
+		mLimiters = RPCLimiter.NONE;
+	}
+
+	/**
+	 * Cancels the call (which may not have started, or may have finished).
+	 */
+	void cancel(String why) {
+		if ( mCancelled == null ) mCancelled = why;
+	}
+
+	/**
+	 * Makes this the current thread's context, until exit().
+	 */
+	void enter() {
+		mOuter = current.get();
+		current.set(this);
+	}
+
+	void exit() {
+		if ( mOuter == null ) current.remove();
+		else current.set(mOuter);
+		mOuter = null;
+	}
+}
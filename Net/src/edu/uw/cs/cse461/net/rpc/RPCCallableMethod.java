@@ -3,7 +3,13 @@ package edu.uw.cs.cse461.net.rpc;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 import org.json.JSONObject;
 
@@ -13,7 +19,19 @@ import edu.uw.cs.cse461.util.Log;
  * An object of this type represents an RPC callable method.  You'll have one
  * object of this type for each method you expose by RPC.
  * <p>
- * The parameterized type, T, is the class exposing the method.
+ * The method is looked up by name once, when the RPCCallableMethod is created, and bound to
+ * a Handler: an instance of a class generated (by LambdaMetafactory) just as if you'd written
+ * serviceObject::methodName.  A call is then an ordinary interface call, which the JIT can
+ * inline, rather than a reflective Method.invoke(), which boxes the arguments, checks access
+ * on every call, and wraps whatever the method throws in an InvocationTargetException.  If the
+ * method isn't accessible to a generated class (a public method of a non-public class, say),
+ * it's called through a MethodHandle instead.
+ * <p>
+ * You can also supply the Handler yourself, e.g., new RPCCallableMethod(this::_echo).
+ * <p>
+ * A method whose result is too large to build in memory can instead be a StreamHandler, which
+ * writes its result a chunk at a time to an RPCStreamWriter.  Callers call it with
+ * RPCCall.invokeStream().
  * <p>
  * See the source in EchoRPCService.java for an example of its use.
  * @author zahorjan
@@ -22,37 +40,140 @@ import edu.uw.cs.cse461.util.Log;
  */
 public class RPCCallableMethod {
 	private static final String TAG="RPCCallableMethod";
-	
+
+	/**
+	 * The form of every RPC callable method.
+	 */
+	public interface Handler {
+		public JSONObject handleCall(JSONObject args) throws Exception;
+	}
+
+	/**
+	 * The form of every streaming RPC callable method.  The call completes when the method returns.
+	 */
+	public interface StreamHandler {
+		public void handleCall(JSONObject args, RPCStreamWriter out) throws Exception;
+	}
+
 	Object service;
 	Method method;
+	private final Handler handler;
+	private final StreamHandler streamHandler;
+
 	/**
 	 * Constructor.
 	 * @param serviceObject The Java instance of the object that will field the RPC
 	 * @param methodName The name of the Java method to invoke on that object, as a String
 	 * @throws NoSuchMethodException
 	 */
-	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException { 
-		service = serviceObject; 
+	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException {
+		service = serviceObject;
 		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
 		method = serviceClass.getMethod(methodName, JSONObject.class);
+		if ( !JSONObject.class.isAssignableFrom(method.getReturnType()) )
+			throw new NoSuchMethodException(serviceClass.getName() + "." + methodName + "(JSONObject) doesn't return a JSONObject");
+		handler = _bind(service, method);
+		streamHandler = null;
+	}
+
+	/**
+	 * Constructor, for a handler that's already a Handler (e.g., a lambda or method reference).
+	 */
+	public RPCCallableMethod(Handler handler) {
+		this.handler = handler;
+		this.streamHandler = null;
+	}
+
+	/**
+	 * Constructor, for a streaming method (e.g., new RPCCallableMethod(this::_download)).
+	 */
+	public RPCCallableMethod(StreamHandler streamHandler) {
+		this.handler = null;
+		this.streamHandler = streamHandler;
+	}
+
+	/**
+	 * Returns true if this is a streaming method, called with handleStreamingCall().
+	 */
+	public boolean isStreaming() {
+		return streamHandler != null;
 	}
+
 	/**
 	 * This method is called to actually invoke the method that handles the RPC.
 	 * @param args  The arguments to pass on this call
 	 * @return The JSONObject returned by the RPC handling method of the service
-	 * @throws Exception
+	 * @throws Exception Whatever the method throws, unwrapped
 	 */
 	public JSONObject handleCall(JSONObject args) throws Exception {
+		if ( handler == null ) throw new IllegalStateException("This is a streaming method; call it with RPCCall.invokeStream()");
+		try {
+			return handler.handleCall(args);
+		} catch (Exception e) {
+			_log(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Invokes a streaming method, which writes its result to out.
+	 * @throws Exception Whatever the method throws
+	 */
+	public void handleStreamingCall(JSONObject args, RPCStreamWriter out) throws Exception {
+		if ( streamHandler == null ) throw new IllegalStateException("This isn't a streaming method; call it with RPCCall.invoke()");
 		try {
-			return (JSONObject)method.invoke(service, args);
+			streamHandler.handleCall(args, out);
 		} catch (Exception e) {
-			final Writer trace = new StringWriter();
-			final PrintWriter printWriter = new PrintWriter(trace);
-			e.printStackTrace(printWriter);
-			Log.e(TAG, "Caught Exception: " + e.getMessage() + "\n" + trace.toString());
-			printWriter.close();
-			trace.close();
+			// a cancelled stream is the caller's doing, not an error in the method
+			if ( !out.isCancelled() ) _log(e);
 			throw e;
 		}
 	}
+
+	private static void _log(Exception e) throws Exception {
+		final Writer trace = new StringWriter();
+		final PrintWriter printWriter = new PrintWriter(trace);
+		e.printStackTrace(printWriter);
+		Log.e(TAG, "Caught Exception: " + e.getMessage() + "\n" + trace.toString());
+		printWriter.close();
+		trace.close();
+	}
+
+	/**
+	 * Returns a Handler that calls method on target (or, for a static method, just calls method).
+	 */
+	private static Handler _bind(Object target, Method method) throws NoSuchMethodException {
+		boolean isStatic = Modifier.isStatic(method.getModifiers());
+		MethodType handlerType = MethodType.methodType(JSONObject.class, JSONObject.class);
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			MethodHandle impl = lookup.unreflect(method);
+			CallSite site = LambdaMetafactory.metafactory(lookup, "handleCall",
+					isStatic ? MethodType.methodType(Handler.class) : MethodType.methodType(Handler.class, method.getDeclaringClass()),
+					handlerType, impl, MethodType.methodType(method.getReturnType(), JSONObject.class));
+			return (Handler)(isStatic ? site.getTarget().invoke() : site.getTarget().invoke(target));
+		} catch (Throwable e) {
+			Log.d(TAG, "Can't generate a Handler for " + method + " (" + e + "); using a MethodHandle");
+		}
+		try {
+			method.setAccessible(true);
+			MethodHandle mh = lookup.unreflect(method);
+			if ( !isStatic ) mh = mh.bindTo(target);
+			final MethodHandle exact = mh.asType(handlerType);
+			return new Handler() {
+				@Override
+				public JSONObject handleCall(JSONObject args) throws Exception {
+					try {
+						return (JSONObject)exact.invokeExact(args);
+					} catch (Exception | Error e) {
+						throw e;
+					} catch (Throwable t) {
+						throw new RuntimeException(t);
+					}
+				}
+			};
+		} catch (Exception e) {
+			throw new NoSuchMethodException("Can't bind " + method + ": " + e);
+		}
+	}
 }
@@ -1,25 +1,49 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCCancelMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCCreditMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.FrameCompressor;
+import edu.uw.cs.cse461.net.tcpmessagehandler.SocketOptionProfile;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.util.Log;
 
 /**
  * Implements a Socket to use in sending remote RPC invocations.  (It must engage
  * in the RPC handshake before sending the invocation request.)
+ * <p>
+ * Calls are pipelined: invoke() sends its request without waiting for earlier calls to complete,
+ * and a reader thread matches each reply to its call by the reply's callid.  The server may
+ * reply out of order.  Each call's timeout is enforced by a timer shared by all connections.
  * @author zahorjan
  *
  */
@@ -28,47 +52,110 @@ import edu.uw.cs.cse461.util.Log;
 	
 	private int id;
 	private TCPMessageHandler tcpMsgHandler;
+	private final ConcurrentHashMap<Integer, CompletableFuture<RPCReply>> pending = new ConcurrentHashMap<Integer, CompletableFuture<RPCReply>>();
+	private final ConcurrentHashMap<Integer, RPCStream> streams = new ConcurrentHashMap<Integer, RPCStream>();
+	private volatile IOException failure = null;
+	private volatile long lastActive = System.currentTimeMillis();
+	private volatile boolean used = false;
+	// service name -> method name -> id, as told us by the server; empty if it didn't
+	private HashMap<String, HashMap<String, Integer>> methodIds = new HashMap<String, HashMap<String, Integer>>();
+	private static ScheduledExecutorService timer = null;
+	// sends the cancels of timed out and hedged calls, which the timer and readers mustn't block on
+	private static final ExecutorService canceller = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RPCCallerSocket canceller");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	private boolean wantPersistent;
+	private boolean replaySafe = false;
 	private String host;
+	private final int maxAttachments = NetBase.theNetBase().config().getAsInt("rpc.attachments.max", 1024, 0);
+	// identifies this process's calls to servers that remember replies (see RPCReplayCache)
+	private static final String session = UUID.randomUUID().toString();
 	
 	/**
 	 * Create a socket for sending RPC invocations, connecting it to the specified remote ip and port.
+	 * Connecting, like the handshake that follows, takes at most socketTimeout msec.
 	 * @param Remote host's name. In Project 3, it's not terribly meaningful - repeat the ip.
 	 *  In Project 4, it's intended to be the string name of the remote system, allowing a degree of sanity checking.
 	 * @param ip  Remote system IP address.
 	 * @param port Remote RPC service's port.
-	 * @param wantPersistent True if caller wants to try to establish a persistent connection, false otherwise
+	 * @param wantPersistent True if caller wants to try to establish a persistent connection, false otherwise.
+	 *        isPersistent() tells whether the server agreed.
 	 * @throws IOException
 	 * @throws JSONException
 	 */
 	RPCCallerSocket(String ip, int port, int socketTimeout, boolean wantPersistent) throws IOException, JSONException {
-		super(ip, port);	
+		super();
 		
-		// save state
-		JSONObject options = null;
-		if (wantPersistent) {
-			options = new JSONObject().put("connection", "keep-alive");
-		}
-		RPCControlMessage controlMsg = new RPCControlMessage("connect", options);
-		this.tcpMsgHandler = new TCPMessageHandler(this);
-		this.tcpMsgHandler.setTimeout(socketTimeout);
-		this.wantPersistent = wantPersistent;
-		this.id = controlMsg.id();
-		this.host = ip;
+		try {
+			SocketOptionProfile.get("rpccall").applyBeforeConnect(this);
+			connect(new InetSocketAddress(ip, port), socketTimeout);
+			// save state
+			JSONObject options = null;
+			if (wantPersistent) {
+				options = new JSONObject().put("connection", "keep-alive");
+			}
+			// offer compression if configured; the server picks one of the codecs offered, or none
+			String compressionOffer = FrameCompressor.offerFromConfig("rpc.compression");
+			if (compressionOffer != null) {
+				if (options == null) options = new JSONObject();
+				options.put("compression", compressionOffer);
+			}
+			// ask for the server's method ids, so invocations can carry an id instead of names
+			if (options == null) options = new JSONObject();
+			options.put("methodids", true);
+			options.put("session", session);
+			RPCControlMessage controlMsg = new RPCControlMessage("connect", options);
+			this.tcpMsgHandler = new TCPMessageHandler(this);
+			this.tcpMsgHandler.stats().setOwner("rpccall");
+			this.tcpMsgHandler.applySocketOptions("rpccall");
+			this.tcpMsgHandler.setTimeout(socketTimeout);
+			this.id = controlMsg.id();
+			this.host = ip;
 		
-		// send the connection mesage to the server
-		tcpMsgHandler.sendMessage(controlMsg.marshall());
+			// send the connection mesage to the server
+			tcpMsgHandler.sendMessage(controlMsg.marshall());
 		
-		// read the connection message
-		JSONObject response = tcpMsgHandler.readMessageAsJSONObject();
-		// server did not provide a success response
-		if (!response.has("type") || !response.getString("type").equals("OK")) {
-			String msg = "The server is not configured to respond to RPC calls";
-			if (response.has("msg")) {
-				msg = response.getString("msg");
+			// read the connection message
+			JSONObject response = tcpMsgHandler.readMessageAsJSONObject();
+			// server did not provide a success response
+			if (!response.has("type") || !response.getString("type").equals("OK")) {
+				String msg = "The server is not configured to respond to RPC calls";
+				if (response.has("msg")) {
+					msg = response.getString("msg");
+				}
+				throw new IOException(msg);
 			}
-			throw new IOException(msg);
+			// the server echoes the options it agreed to
+			JSONObject agreed = response.optJSONObject("value");
+			if (agreed != null) {
+				this.wantPersistent = agreed.optString("connection").equals("keep-alive");
+				if (agreed.has("compression")) tcpMsgHandler.compressor().setCodec(agreed.getString("compression"));
+				if (agreed.has("methods")) methodIds = RPCMethodTable.unmarshallIds(agreed.getJSONArray("methods"));
+				this.replaySafe = agreed.optBoolean("replay");
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (JSONException e) {
+			close();
+			throw e;
 		}
+
+		// from here on, replies are collected by the reader thread, and each call enforces its own timeout
+		tcpMsgHandler.setTimeout(0);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_readReplies();
+			}
+		}, "RPCCallerSocket reader " + ip + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
 	}
 	
 	public String getHost() {
@@ -82,19 +169,349 @@ import edu.uw.cs.cse461.util.Log;
 	public int id() { 
 		return id;
 	}
+
+	/**
+	 * True if the server remembers replies, so a call retried with its original id (on this or another
+	 * connection to the server) is answered without being executed again.
+	 */
+	public boolean isReplaySafe() {
+		return replaySafe;
+	}
 	
-	public JSONObject invoke(String serviceName, String method, JSONObject userRequest) throws JSONException, IOException  {
-		JSONObject response = null;
-		RPCInvokeMessage invokeMsg = new RPCInvokeMessage(serviceName, method, userRequest);
-		tcpMsgHandler.sendMessage(invokeMsg.marshall());
-		response = tcpMsgHandler.readMessageAsJSONObject();
-		return response.getJSONObject("value");
+	/**
+	 * Sends an invocation without waiting for its reply.  Any number of threads may make calls at once;
+	 * their calls share the connection.  The sending is done by the calling thread.
+	 * <p>
+	 * The future is completed by the connection's reader thread (or, on timeout, by a timer thread),
+	 * so dependent actions attached to it run there unless an async variant is used.  They should
+	 * not block: while they run, no other reply on this connection can be delivered.
+	 * @param timeout Maximum time to wait for the reply, in msec.
+	 * @return A future completed with the value the remote method returned.  It fails with a
+	 *         SocketTimeoutException if no reply arrives in time (the connection remains usable), and
+	 *         with an IOException if the remote method failed or the connection has failed (see isUsable()).
+	 */
+	public CompletableFuture<JSONObject> invokeAsync(String serviceName, String method, JSONObject userRequest, int timeout) {
+		return invokeWithAttachmentsAsync(serviceName, method, userRequest, null, timeout).thenApply(RPCReply::value);
+	}
+
+	/**
+	 * Like invokeAsync(), but sends attachments (possibly null) with the invocation, and the reply
+	 * includes any attachments the remote method returned.
+	 */
+	public CompletableFuture<RPCReply> invokeWithAttachmentsAsync(String serviceName, String method, JSONObject userRequest, List<ByteBuffer> attachments, int timeout) {
+		return invokeWithAttachmentsAsync(serviceName, method, userRequest, attachments, timeout, -1);
+	}
+
+	/**
+	 * Like invokeWithAttachmentsAsync(), but sends the invocation with an id from RPCMessage.nextId(),
+	 * or with a fresh one if callid is negative.  Retries of a call reuse its id.
+	 */
+	CompletableFuture<RPCReply> invokeWithAttachmentsAsync(String serviceName, String method, JSONObject userRequest, List<ByteBuffer> attachments, int timeout, int callid) {
+		try {
+			RPCCallMessage invokeMsg = new RPCInvokeMessage(serviceName, method, _methodId(serviceName, method), userRequest);
+			invokeMsg.attach(attachments);
+			if (callid >= 0) invokeMsg.setId(callid);
+			return _send(invokeMsg, serviceName + "." + method + " call", timeout);
+		} catch (JSONException e) {
+			CompletableFuture<RPCReply> reply = new CompletableFuture<RPCReply>();
+			reply.completeExceptionally(new IOException("Can't build invocation of " + serviceName + "." + method, e));
+			return reply;
+		}
+	}
+
+	/**
+	 * Sends a batch of invocations as one message, without waiting for the reply.  Like invokeAsync(),
+	 * but the future's value holds the results of all the calls; see RPCBatch.results().  It fails
+	 * only if the batch as a whole does (e.g., times out).
+	 */
+	public CompletableFuture<JSONObject> invokeBatchAsync(RPCBatch batch, int timeout) {
+		return invokeBatchAsync(batch, timeout, -1);
+	}
+
+	/**
+	 * Like invokeBatchAsync(), but with a given id; see invokeWithAttachmentsAsync().
+	 */
+	CompletableFuture<JSONObject> invokeBatchAsync(RPCBatch batch, int timeout, int callid) {
+		try {
+			JSONArray calls = new JSONArray();
+			for ( int i=0; i<batch.size(); i++ ) {
+				String serviceName = batch.mServices.get(i);
+				String method = batch.mMethods.get(i);
+				int mid = _methodId(serviceName, method);
+				JSONObject call = new JSONObject();
+				if ( mid >= 0 ) call.put("mid", mid);
+				else call.put("app", serviceName).put("method", method);
+				if ( batch.mArgs.get(i) != null ) call.put("args", batch.mArgs.get(i));
+				calls.put(call);
+			}
+			RPCCallMessage batchMsg = new RPCBatchMessage(calls, batch.mSequential);
+			if (callid >= 0) batchMsg.setId(callid);
+			return _send(batchMsg, "batch of " + batch.size() + " calls", timeout).thenApply(RPCReply::value);
+		} catch (JSONException e) {
+			CompletableFuture<JSONObject> reply = new CompletableFuture<JSONObject>();
+			reply.completeExceptionally(new IOException("Can't build batch invocation", e));
+			return reply;
+		}
+	}
+
+	/**
+	 * Sends a streaming invocation (see RPCStream).  The result's chunks are collected by the reader thread.
+	 * @param window The most chunks to buffer before the server must wait for us to consume some
+	 * @param timeout The longest, in msec, the stream's reader waits for any one chunk
+	 * @throws IOException If the invocation can't be sent
+	 */
+	public RPCStream invokeStream(String serviceName, String method, JSONObject userRequest, int window, int timeout) throws IOException {
+		RPCInvokeMessage invokeMsg;
+		int callid;
+		try {
+			invokeMsg = new RPCInvokeMessage(serviceName, method, _methodId(serviceName, method), userRequest).stream(window);
+			callid = invokeMsg.id();
+		} catch (JSONException e) {
+			throw new IOException("Can't build invocation of " + serviceName + "." + method, e);
+		}
+		RPCStream stream = new RPCStream(this, callid, window, timeout);
+		streams.put(callid, stream);
+		try {
+			// checked after registering, so that a reader that fails concurrently is sure to see the call
+			if ( failure != null ) throw new IOException("RPC connection to " + host + " has failed", failure);
+			used = true;
+			lastActive = System.currentTimeMillis();
+			tcpMsgHandler.sendMessage(invokeMsg.marshall());
+		} catch (IOException e) {
+			streams.remove(callid);
+			_fail(e);
+			throw e;
+		}
+		return stream;
+	}
+
+	/**
+	 * Lets the server send credit more chunks of the streaming call callid.
+	 */
+	void grantCredit(int callid, int credit) throws IOException {
+		try {
+			tcpMsgHandler.sendMessage(new RPCCreditMessage(callid, credit).marshall());
+		} catch (JSONException e) {
+			throw new IOException("Can't build credit message", e);
+		}
+	}
+
+	/**
+	 * Stops waiting for the reply to streaming call callid, and asks the server to cancel it.
+	 */
+	void cancelStream(int callid) {
+		if ( streams.remove(callid) == null ) return;
+		_cancel(callid);
+	}
+
+	/**
+	 * Stops waiting for the reply to call callid, failing its future with a CancellationException,
+	 * and asks the server to cancel it.  Does nothing if the call has completed.  Doesn't block: it's
+	 * called from whichever thread completed another call, which may be a reader or the timer.
+	 */
+	void cancel(int callid) {
+		CompletableFuture<RPCReply> reply = pending.remove(callid);
+		if ( reply == null ) return;
+		reply.completeExceptionally(new CancellationException("Call " + callid + " cancelled"));
+		_cancelLater(callid);
+	}
+
+	/**
+	 * Asks the server to cancel call callid, whose reply we're no longer waiting for.
+	 */
+	private void _cancel(int callid) {
+		// a non-persistent connection's server reads nothing after the call
+		if ( failure != null || !wantPersistent ) return;
+		try {
+			tcpMsgHandler.sendMessage(new RPCCancelMessage(callid).marshall());
+		} catch (Exception e) {
+			// the connection has failed, which ends the call anyway
+			Log.d(TAG, "Couldn't cancel call " + callid + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Asks the server to cancel call callid, sending from the canceller rather than the calling thread.
+	 * The send may block behind a large write, or a server that isn't reading.
+	 */
+	private void _cancelLater(int callid) {
+		if ( failure != null || !wantPersistent ) return;
+		canceller.execute(new Runnable() {
+			@Override
+			public void run() {
+				_cancel(callid);
+			}
+		});
+	}
+
+	/**
+	 * Registers a call message, arranges for its timeout, and sends it.  The message tells the server
+	 * the timeout, and if it expires, the server is told to cancel the call, so it can drop the call
+	 * rather than spend time on a reply no one will read.
+	 * @param what Describes the call, for the timeout exception
+	 */
+	private CompletableFuture<RPCReply> _send(RPCCallMessage msg, String what, int timeout) throws JSONException {
+		CompletableFuture<RPCReply> reply = new CompletableFuture<RPCReply>();
+		int callid = msg.id();
+		msg.budget(timeout);
+		pending.put(callid, reply);
+		ScheduledFuture<?> timeoutTask = _timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if ( pending.remove(callid) == null ) return;
+				reply.completeExceptionally(new SocketTimeoutException("No reply to " + what + " within " + timeout + " msec"));
+				_cancelLater(callid);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		reply.whenComplete((value, e) -> timeoutTask.cancel(false));
+		try {
+			// checked after registering, so that a reader that fails concurrently is sure to see the call
+			if ( failure != null ) throw new IOException("RPC connection to " + host + " has failed", failure);
+			used = true;
+			lastActive = System.currentTimeMillis();
+			msg.send(tcpMsgHandler);
+		} catch (IOException e) {
+			_fail(e);
+		}
+		return reply;
+	}
+
+	/**
+	 * Returns the server's id for serviceName.methodName, or -1 if it didn't give one.  (Methods
+	 * registered after we connected have no id here, so they're called by name.)
+	 */
+	private int _methodId(String serviceName, String methodName) {
+		HashMap<String, Integer> serviceIds = methodIds.get(serviceName);
+		if ( serviceIds == null ) return -1;
+		Integer id = serviceIds.get(methodName);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * The timer thread that enforces call timeouts, for others' short tasks.  Its tasks must not block.
+	 */
+	static ScheduledExecutorService sharedTimer() {
+		return _timer();
+	}
+
+	private static synchronized ScheduledExecutorService _timer() {
+		if ( timer == null ) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RPCCallerSocket timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// nearly every timeout is cancelled by a reply; don't let them pile up in the queue
+			executor.setRemoveOnCancelPolicy(true);
+			timer = executor;
+		}
+		return timer;
+	}
+
+	/**
+	 * Returns false once the connection has failed or been closed, or, if it isn't persistent, once
+	 * a call has been made on it.  Calls can then no longer be made on it.
+	 */
+	public boolean isUsable() {
+		return failure == null && !isClosed() && (wantPersistent || !used);
+	}
+
+	/**
+	 * Returns true once the connection has failed (e.g., the server has closed it, or a write to it
+	 * failed).  A connection that is merely unusable, because it isn't persistent and has been used,
+	 * hasn't failed.
+	 */
+	public boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Returns how long, in msec, the connection has had no calls outstanding.  Zero if it has some.
+	 */
+	public long idleTime() {
+		if ( !pending.isEmpty() || !streams.isEmpty() ) return 0;
+		return System.currentTimeMillis() - lastActive;
+	}
+
+	/**
+	 * Returns the number of calls awaiting replies, including streaming calls that haven't ended.
+	 */
+	public int outstanding() {
+		return pending.size() + streams.size();
+	}
+
+	/**
+	 * Executed by the reader thread.  Routes each reply to the call with the matching id.  Replies
+	 * may arrive in any order; a reply for a call that has given up waiting is dropped.  A streaming
+	 * call's chunks go to its RPCStream, until the normal or error reply that ends it.
+	 */
+	private void _readReplies() {
+		try {
+			while ( true ) {
+				JSONObject response = tcpMsgHandler.readMessageAsJSONObject();
+				List<ByteBuffer> attachments = RPCMessage.readAttachments(tcpMsgHandler, response, maxAttachments);
+				int callid = response.optInt("callid", -1);
+				lastActive = System.currentTimeMillis();
+				String type = response.optString("type");
+				RPCStream stream = streams.get(callid);
+				if ( stream != null ) {
+					if ( type.equals("chunk") ) {
+						stream.chunk(response.optJSONObject("value"));
+						continue;
+					}
+					streams.remove(callid);
+					if ( type.equals("OK") ) stream.end();
+					else if ( type.equals("ERROR") ) stream.fail(_error(response));
+					else stream.fail(new IOException("Unexpected reply type '" + type + "' from " + host));
+					continue;
+				}
+				CompletableFuture<RPCReply> reply = pending.remove(callid);
+				if ( reply == null ) {
+					Log.d(TAG, "Dropping reply to call " + callid + ", which is no longer waiting");
+					continue;
+				}
+				if ( type.equals("OK") ) reply.complete(new RPCReply(response.optJSONObject("value"), attachments));
+				else if ( type.equals("ERROR") ) reply.completeExceptionally(_error(response));
+				else reply.completeExceptionally(new IOException("Unexpected reply type '" + type + "' from " + host));
+			}
+		} catch (Exception e) {
+			_fail(e instanceof IOException ? (IOException)e : new IOException("Unparsable reply from " + host, e));
+		}
+	}
+
+	/**
+	 * Returns the exception an error reply stands for: an RPCOverloadedException if the server refused
+	 * the call, and otherwise an RPCRemoteException.
+	 */
+	private IOException _error(JSONObject response) {
+		String msg = "RPC call failed at " + host + ": " + response.optString("message");
+		if ( response.optBoolean("overloaded") ) return new RPCOverloadedException(msg);
+		return new RPCRemoteException(msg);
+	}
+
+	/**
+	 * Marks the connection failed, closes it, and fails every call waiting on it.
+	 */
+	private void _fail(IOException e) {
+		if ( failure == null ) failure = e;
+		tcpMsgHandler.close();
+		for ( Integer callid : pending.keySet() ) {
+			CompletableFuture<RPCReply> reply = pending.remove(callid);
+			if ( reply != null ) reply.completeExceptionally(new IOException("RPC connection to " + host + " failed: " + e.getMessage(), e));
+		}
+		for ( Integer callid : streams.keySet() ) {
+			RPCStream stream = streams.remove(callid);
+			if ( stream != null ) stream.fail(new IOException("RPC connection to " + host + " failed: " + e.getMessage(), e));
+		}
 	}
 
 	/**
 	 * Close this socket.
 	 */
 	synchronized public void discard() {
-		tcpMsgHandler.close();
+		_fail(new IOException("Connection closed"));
 	}
 }
@@ -0,0 +1,358 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONException;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The persistent connections RPCCall makes calls on, grouped by remote endpoint (ip:port).
+ * <p>
+ * Calls are pipelined, so one connection can carry many at once.  A call is made on the endpoint's
+ * connection with the fewest calls outstanding.  Another connection is opened only when every
+ * existing one has at least rpc.pool.maxoutstanding calls outstanding, up to rpc.pool.max connections
+ * per endpoint; beyond that, calls queue on the existing connections.
+ * <p>
+ * A cleaner thread runs every rpc.pool.cleaninterval msec.  It discards connections that have failed
+ * (including ones the server has closed), closes connections that have been idle for rpc.persistence.timeout
+ * msec, and reopens connections to keep at least rpc.pool.min per endpoint.  (If reopening fails, it isn't
+ * tried again for another rpc.persistence.timeout msec.)  Endpoints listed in
+ * rpc.pool.preconnect (as ip:port entries) are connected to when the pool is created.  The cleaner
+ * hands its connecting to other threads, so an unreachable endpoint doesn't hold up the others.
+ * <p>
+ * No lock is held while connecting, and connecting takes at most the caller's timeout.
+ * <p>
+ * Thread safe.
+ */
+class RPCConnectionPool {
+	private static final String TAG="RPCConnectionPool";
+
+	private final ConcurrentHashMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<String, Endpoint>();
+	private final int mMin;
+	private final int mMax;
+	private final int mMaxOutstanding;
+	private final int mIdleTimeout;
+	private final int mConnectTimeout;
+	private final int mRetryInterval;
+	private final Timer mCleaner;
+	// opens the connections the cleaner and preconnecting ask for
+	private final ExecutorService mConnector = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RPCConnectionPool connector");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * The connections to one ip:port.
+	 */
+	private class Endpoint {
+		private final String mIP;
+		private final int mPort;
+		private final ArrayList<RPCCallerSocket> mConnections = new ArrayList<RPCCallerSocket>();
+		private int mConnecting = 0;
+		private long mRetryTime = 0;         // when topping up may next be tried, after a failure
+		// the endpoint's first connection, while it's being opened
+		private CompletableFuture<RPCCallerSocket> mFirst = null;
+
+		Endpoint(String ip, int port) {
+			mIP = ip;
+			mPort = port;
+		}
+
+		/**
+		 * Returns the connection to make a call on, opening one if needed.  Callers racing to an
+		 * endpoint with no connection make just one: the first opens it, and the rest wait for it,
+		 * each for at most its own timeout.  Additional connections are opened while calls keep
+		 * flowing on the existing ones.
+		 */
+		RPCCallerSocket acquire(int timeout) throws JSONException, IOException {
+			RPCCallerSocket best;
+			CompletableFuture<RPCCallerSocket> first;
+			synchronized(this) {
+				best = _leastLoaded();
+				if ( best == null ) {
+					first = mFirst;
+					if ( first == null ) {
+						mFirst = new CompletableFuture<RPCCallerSocket>();
+						mConnecting++;
+					}
+				} else {
+					if ( best.outstanding() < mMaxOutstanding || mConnections.size() + mConnecting >= mMax ) return best;
+					first = null;
+					mConnecting++;
+				}
+			}
+			if ( best == null ) return first == null ? _connectFirst(timeout) : _awaitFirst(first, timeout);
+			RPCCallerSocket extra = null;
+			try {
+				extra = _connect(timeout);
+				return extra;
+			} catch (IOException e) {
+				// we have a working connection; use it
+				Log.w(TAG, "Couldn't open another connection to " + this + ": " + e.getMessage());
+				return best;
+			} finally {
+				synchronized(this) {
+					mConnecting--;
+					if ( extra != null ) mConnections.add(extra);
+				}
+			}
+		}
+
+		synchronized void remove(RPCCallerSocket sock) {
+			mConnections.remove(sock);
+		}
+
+		/**
+		 * Opens the endpoint's first connection, and hands it, or the failure to open it, to any
+		 * callers waiting for it.
+		 */
+		private RPCCallerSocket _connectFirst(int timeout) throws JSONException, IOException {
+			RPCCallerSocket sock = null;
+			Exception failure = null;
+			try {
+				sock = _connect(timeout);
+				return sock;
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			} catch (JSONException e) {
+				failure = e;
+				throw e;
+			} finally {
+				CompletableFuture<RPCCallerSocket> first;
+				synchronized(this) {
+					first = mFirst;
+					mFirst = null;
+					mConnecting--;
+					if ( sock != null ) mConnections.add(sock);
+				}
+				if ( sock != null ) first.complete(sock);
+				else first.completeExceptionally(failure != null ? failure : new IOException("Couldn't connect to " + this));
+			}
+		}
+
+		private RPCCallerSocket _awaitFirst(CompletableFuture<RPCCallerSocket> first, int timeout) throws JSONException, IOException {
+			try {
+				return timeout > 0 ? first.get(timeout, TimeUnit.MILLISECONDS) : first.get();
+			} catch (TimeoutException e) {
+				throw new SocketTimeoutException("Timed out waiting for a connection to " + this);
+			} catch (ExecutionException e) {
+				if ( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+				if ( e.getCause() instanceof JSONException ) throw (JSONException)e.getCause();
+				throw new IOException("Couldn't connect to " + this + ": " + e.getCause(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a connection to " + this);
+			}
+		}
+
+		/**
+		 * Drops failed and idle connections, then starts topping up to the minimum.
+		 */
+		void clean() {
+			ArrayList<RPCCallerSocket> closing = new ArrayList<RPCCallerSocket>();
+			int missing;
+			synchronized(this) {
+				for ( RPCCallerSocket sock : mConnections ) {
+					if ( !sock.isUsable() ) closing.add(sock);
+				}
+				mConnections.removeAll(closing);
+				for ( RPCCallerSocket sock : new ArrayList<RPCCallerSocket>(mConnections) ) {
+					if ( mConnections.size() <= mMin ) break;
+					if ( sock.idleTime() >= mIdleTimeout ) {
+						mConnections.remove(sock);
+						closing.add(sock);
+					}
+				}
+				missing = System.currentTimeMillis() < mRetryTime ? 0 : mMin - mConnections.size() - mConnecting;
+				if ( missing > 0 ) mConnecting += missing;
+			}
+			for ( RPCCallerSocket sock : closing ) sock.discard();
+			for ( int i=0; i<missing; i++ ) {
+				mConnector.execute(new Runnable() {
+					@Override
+					public void run() {
+						_topUp();
+					}
+				});
+			}
+		}
+
+		private void _topUp() {
+			RPCCallerSocket sock = null;
+			try {
+				sock = _connect(mConnectTimeout);
+			} catch (Exception e) {
+				Log.w(TAG, "Couldn't connect to " + this + ": " + e.getMessage());
+			}
+			synchronized(this) {
+				mConnecting--;
+				if ( sock != null ) mConnections.add(sock);
+				else mRetryTime = System.currentTimeMillis() + mRetryInterval;
+			}
+		}
+
+		synchronized void discardAll() {
+			for ( RPCCallerSocket sock : mConnections ) sock.discard();
+			mConnections.clear();
+		}
+
+		private RPCCallerSocket _leastLoaded() {
+			RPCCallerSocket best = null;
+			for ( RPCCallerSocket sock : mConnections ) {
+				if ( !sock.isUsable() ) continue;
+				if ( best == null || sock.outstanding() < best.outstanding() ) best = sock;
+			}
+			return best;
+		}
+
+		private RPCCallerSocket _connect(int timeout) throws JSONException, IOException {
+			return new RPCCallerSocket(mIP, mPort, timeout, true);
+		}
+
+		synchronized String describe() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(this).append(": ").append(mConnections.size()).append(" connections");
+			for ( RPCCallerSocket sock : mConnections ) {
+				sb.append("\n\t\t").append(sock.getLocalPort())
+				  .append(sock.isUsable() ? "" : " (failed)")
+				  .append(sock.isPersistent() ? "" : " (not persistent)")
+				  .append(", ").append(sock.outstanding()).append(" calls outstanding");
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return mIP + ":" + mPort;
+		}
+	}
+
+	/**
+	 * Constructor.  Reads the pool settings from the config file, starts the cleaner, and begins
+	 * connecting to the rpc.pool.preconnect endpoints.
+	 */
+	RPCConnectionPool() {
+		ConfigManager config = NetBase.theNetBase().config();
+		mMin = config.getAsInt("rpc.pool.min", 0, 0);
+		mMax = config.getAsInt("rpc.pool.max", 4, 1);
+		mMaxOutstanding = config.getAsInt("rpc.pool.maxoutstanding", 32, 1);
+		mIdleTimeout = config.getAsInt("rpc.persistence.timeout", 30000, 0);
+		mConnectTimeout = config.getAsInt("net.timeout.socket", 2000, 0);
+		mRetryInterval = Math.max(1000, mIdleTimeout);
+		int cleanInterval = config.getAsInt("rpc.pool.cleaninterval", Math.max(1000, mIdleTimeout / 4), 1);
+
+		mCleaner = new Timer("RPCConnectionPool cleaner", true);
+		String[] preconnect = config.getAsStringVec("rpc.pool.preconnect");
+		if ( preconnect != null ) {
+			for ( String entry : preconnect ) {
+				if ( entry.isEmpty() ) continue;
+				int colon = entry.lastIndexOf(':');
+				int port = -1;
+				try {
+					if ( colon > 0 ) port = Integer.parseInt(entry.substring(colon + 1));
+				} catch (NumberFormatException e) {
+				}
+				if ( port <= 0 ) {
+					Log.w(TAG, "Ignoring rpc.pool.preconnect entry '" + entry + "'.  Should be ip:port");
+					continue;
+				}
+				Endpoint endpoint = _endpoint(entry.substring(0, colon), port);
+				mConnector.execute(new Runnable() {
+					@Override
+					public void run() {
+						_preconnect(endpoint);
+					}
+				});
+			}
+		}
+		mCleaner.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				for ( Endpoint endpoint : mEndpoints.values() ) endpoint.clean();
+			}
+		}, cleanInterval, cleanInterval);
+	}
+
+	/**
+	 * Returns a usable connection to ip:port.
+	 */
+	RPCCallerSocket acquire(String ip, int port, int timeout) throws JSONException, IOException {
+		return _endpoint(ip, port).acquire(timeout);
+	}
+
+	/**
+	 * Forgets a failed connection.
+	 */
+	void remove(String ip, int port, RPCCallerSocket sock) {
+		Endpoint endpoint = mEndpoints.get(_key(ip, port));
+		if ( endpoint != null ) endpoint.remove(sock);
+		sock.discard();
+	}
+
+	/**
+	 * Stops the cleaner and closes every connection.
+	 */
+	void shutdown() {
+		mCleaner.cancel();
+		mConnector.shutdown();
+		for ( Endpoint endpoint : mEndpoints.values() ) endpoint.discardAll();
+	}
+
+	/**
+	 * One line per endpoint, and one per connection, in endpoint order.
+	 */
+	String describe() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("min=%d max=%d maxoutstanding=%d idle timeout=%d msec", mMin, mMax, mMaxOutstanding, mIdleTimeout));
+		Map<String, Endpoint> sorted = new TreeMap<String, Endpoint>(mEndpoints);
+		for ( Endpoint endpoint : sorted.values() ) sb.append("\n\t").append(endpoint.describe());
+		return sb.toString();
+	}
+
+	private void _preconnect(Endpoint endpoint) {
+		try {
+			RPCCallerSocket sock = endpoint.acquire(mConnectTimeout);
+			Log.i(TAG, "Preconnected to " + endpoint + (sock.isPersistent() ? "" : ", but the server won't keep the connection open"));
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't preconnect to " + endpoint + ": " + e.getMessage());
+		}
+		endpoint.clean();
+	}
+
+	private Endpoint _endpoint(String ip, int port) {
+		String key = _key(ip, port);
+		Endpoint endpoint = mEndpoints.get(key);
+		if ( endpoint == null ) {
+			Endpoint newEndpoint = new Endpoint(ip, port);
+			endpoint = mEndpoints.putIfAbsent(key, newEndpoint);
+			if ( endpoint == null ) endpoint = newEndpoint;
+		}
+		return endpoint;
+	}
+
+	private static String _key(String ip, int port) {
+		return ip + ":" + port;
+	}
+}
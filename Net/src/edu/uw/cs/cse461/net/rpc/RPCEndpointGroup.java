@@ -0,0 +1,196 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * A logical RPC endpoint: a named group of servers (replicas) that can each handle the same calls.
+ * RPCCall.invokeEndpoint() sends each call to one of them, picked by the group's policy.
+ * <p>
+ * A group is read from the config file: rpc.endpoints.&lt;name&gt; lists its servers as name:ip:port
+ * entries, and rpc.endpoints.&lt;name&gt;.policy picks them:
+ * <ul>
+ * <li>roundrobin: each in turn.
+ * <li>leastoutstanding: the one with the fewest of our calls outstanding.
+ * <li>p2c (the default): the better of two picked at random, where a server's cost is its latency
+ *     estimate times one more than its outstanding calls.  This follows actual load without the herding
+ *     of always picking the best, since every caller's idea of the best lags.
+ * </ul>
+ * A server's latency estimate is a moving average of its recent call times.  A call that fails for want
+ * of a reply (it times out, the connection fails, or the server refuses it as overloaded) counts as taking
+ * the full timeout, so a server that's down or struggling gets few calls.  The estimate decays while a
+ * server gets no calls, so one that's been avoided is tried again.
+ */
+class RPCEndpointGroup {
+	private enum Policy { ROUNDROBIN, LEASTOUTSTANDING, P2C }
+
+	// weight of the newest call time in a latency estimate
+	private static final double ALPHA = 0.3;
+	// an estimate not updated for this long (msec) has decayed to 1/e of itself
+	private static final double DECAY = 10000;
+
+	private final String mName;
+	private final Policy mPolicy;
+	private final Server[] mServers;
+	private final AtomicInteger mNext = new AtomicInteger();
+	// for RPCCall.invokeHedged(), by service.method
+	private final ConcurrentHashMap<String, RPCHedging> mHedging = new ConcurrentHashMap<String, RPCHedging>();
+
+	/**
+	 * One server in the group, and what we know of its load.
+	 */
+	static class Server {
+		final String mName;
+		final String mIP;
+		final int mPort;
+		private final AtomicInteger mOutstanding = new AtomicInteger();
+		// guarded by this
+		private double mLatency = 0;     // msec; 0 until a call completes
+		private long mUpdated = 0;
+		private long mCalls = 0;
+		private long mFailures = 0;
+
+		Server(String name, String ip, int port) {
+			mName = name;
+			mIP = ip;
+			mPort = port;
+		}
+
+		void begin() {
+			mOutstanding.incrementAndGet();
+		}
+
+		/**
+		 * Records the end of a call.
+		 * @param msec How long the call took, or, if it failed for want of a reply, its timeout
+		 */
+		synchronized void end(long msec, boolean failed) {
+			mOutstanding.decrementAndGet();
+			long now = System.currentTimeMillis();
+			mLatency = mCalls == 0 ? msec : ALPHA * msec + (1 - ALPHA) * _latency(now);
+			mUpdated = now;
+			mCalls++;
+			if ( failed ) mFailures++;
+		}
+
+		/**
+		 * Records the end of a call cancelled before its reply came, which says nothing of the server's speed.
+		 */
+		void abandon() {
+			mOutstanding.decrementAndGet();
+		}
+
+		int outstanding() {
+			return mOutstanding.get();
+		}
+
+		/**
+		 * Returns the expected cost of sending this server another call.
+		 */
+		synchronized double cost() {
+			return _latency(System.currentTimeMillis()) * (mOutstanding.get() + 1);
+		}
+
+		private double _latency(long now) {
+			return mLatency * Math.exp(-(now - mUpdated) / DECAY);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%s (%s:%d): %d outstanding, latency %.1f msec, %d calls, %d failed",
+					mName, mIP, mPort, mOutstanding.get(), _latency(System.currentTimeMillis()), mCalls, mFailures);
+		}
+	}
+
+	private RPCEndpointGroup(String name, Policy policy, Server[] servers) {
+		mName = name;
+		mPolicy = policy;
+		mServers = servers;
+	}
+
+	/**
+	 * Reads the group name from the config file.
+	 * @throws IOException If there's no such group, or its entry is malformed
+	 */
+	static RPCEndpointGroup fromConfig(ConfigManager config, String name) throws IOException {
+		String key = "rpc.endpoints." + name;
+		if ( config.getProperty(key, "").trim().isEmpty() ) throw new IOException("No RPC endpoint " + name + " (config entry " + key + ")");
+		List<Server> servers = new ArrayList<Server>();
+		try {
+			for ( String[] entry : config.readNameIPPortVec(key) ) servers.add(new Server(entry[0], entry[1], Integer.parseInt(entry[2])));
+		} catch (RuntimeException e) {
+			throw new IOException("Bad config entry " + key + ": " + e.getMessage(), e);
+		}
+		String policy = config.getProperty(key + ".policy", "p2c").trim();
+		try {
+			return new RPCEndpointGroup(name, Policy.valueOf(policy.toUpperCase()), servers.toArray(new Server[servers.size()]));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown policy " + policy + " for RPC endpoint " + name);
+		}
+	}
+
+	/**
+	 * Picks the server to send the next call to.
+	 */
+	Server pick() {
+		if ( mServers.length == 1 ) return mServers[0];
+		switch ( mPolicy ) {
+		case ROUNDROBIN:
+			return mServers[(mNext.getAndIncrement() & 0x7fffffff) % mServers.length];
+		case LEASTOUTSTANDING: {
+			// start at a random server, so ties are spread rather than all going to the first
+			int start = ThreadLocalRandom.current().nextInt(mServers.length);
+			Server best = null;
+			for ( int i=0; i<mServers.length; i++ ) {
+				Server server = mServers[(start + i) % mServers.length];
+				if ( best == null || server.outstanding() < best.outstanding() ) best = server;
+			}
+			return best;
+		}
+		default: {
+			int a = ThreadLocalRandom.current().nextInt(mServers.length);
+			int b = ThreadLocalRandom.current().nextInt(mServers.length - 1);
+			if ( b >= a ) b++;
+			return mServers[a].cost() <= mServers[b].cost() ? mServers[a] : mServers[b];
+		}
+		}
+	}
+
+	/**
+	 * Picks a server other than not to send a hedge of a call to (see RPCCall.invokeHedged()): the least costly
+	 * of the others.  If the group has just the one server, returns it, and the hedge goes to it too.
+	 */
+	Server pickOther(Server not) {
+		Server best = null;
+		for ( Server server : mServers ) {
+			if ( server != not && (best == null || server.cost() < best.cost()) ) best = server;
+		}
+		return best == null ? not : best;
+	}
+
+	/**
+	 * Returns the hedging state of serviceName.method, creating it with the given percentile and budget
+	 * the first time it's asked for.
+	 */
+	RPCHedging hedging(String serviceName, String method, int percentile, double budget) {
+		String key = serviceName + "." + method;
+		RPCHedging hedging = mHedging.get(key);
+		if ( hedging != null ) return hedging;
+		RPCHedging raced = mHedging.putIfAbsent(key, hedging = new RPCHedging(percentile, budget));
+		return raced == null ? hedging : raced;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(mName).append(" (").append(mPolicy.toString().toLowerCase()).append(")");
+		for ( Server server : mServers ) sb.append("\n\t").append(server);
+		for ( String method : mHedging.keySet() ) sb.append("\n\thedging ").append(method).append(": ").append(mHedging.get(method));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,86 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Arrays;
+
+/**
+ * What RPCCall.invokeHedged() knows about one method of one endpoint group: how long its recent
+ * calls took, from which it sets the hedging delay, and how much hedging it may still do.
+ * <p>
+ * The delay is the given percentile of the last WINDOW call times (recomputed every RECOMPUTE calls,
+ * not every time it's asked for).  There's no hedging until MIN_SAMPLES calls have completed.
+ * <p>
+ * The budget is a token bucket: each call adds budget tokens (e.g., 0.05), each hedge takes one,
+ * and at most BURST tokens are saved up.  So hedges add at most about budget extra calls per call,
+ * however slow the servers get; when they're all slow, hedging would only add to their load.
+ */
+class RPCHedging {
+	private static final int WINDOW = 512;
+	private static final int RECOMPUTE = 64;
+	private static final int MIN_SAMPLES = 20;
+	private static final double BURST = 10;
+
+	private final int mPercentile;
+	private final double mBudget;
+
+	// all guarded by this
+	private final long[] mSamples = new long[WINDOW];
+	private long mCount = 0;           // total samples ever added
+	private long mDelay = -1;
+	private double mTokens = 0;
+	private long mCalls = 0;
+	private long mHedges = 0;
+	private long mHedgeWins = 0;
+
+	/**
+	 * @param percentile The percentile (1-99) of recent call times after which a call is hedged
+	 * @param budget The most extra calls hedging may add, as a fraction of calls
+	 */
+	RPCHedging(int percentile, double budget) {
+		mPercentile = percentile;
+		mBudget = budget;
+	}
+
+	/**
+	 * Notes a call, which earns budget toward a hedge.  Returns how long to wait for its reply before
+	 * hedging it, in msec, or -1 if too few calls have completed to tell.
+	 */
+	synchronized long begin() {
+		mCalls++;
+		mTokens = Math.min(BURST, mTokens + mBudget);
+		return mDelay;
+	}
+
+	/**
+	 * Takes a token for a hedge, if there is one.
+	 * @return True if the hedge may be sent
+	 */
+	synchronized boolean tryHedge() {
+		if ( mTokens < 1 ) return false;
+		mTokens -= 1;
+		mHedges++;
+		return true;
+	}
+
+	/**
+	 * Records how long a call took, from the sending of its first attempt to the first reply, or, if it
+	 * got none, its whole timeout.
+	 * @param hedgeWon True if the reply was the hedge's
+	 */
+	synchronized void record(long msec, boolean hedgeWon) {
+		if ( hedgeWon ) mHedgeWins++;
+		mSamples[(int)(mCount % WINDOW)] = msec;
+		mCount++;
+		if ( mCount >= MIN_SAMPLES && (mDelay < 0 || mCount % RECOMPUTE == 0) ) {
+			long[] sorted = Arrays.copyOf(mSamples, (int)Math.min(mCount, WINDOW));
+			Arrays.sort(sorted);
+			mDelay = sorted[Math.min(sorted.length - 1, sorted.length * mPercentile / 100)];
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("p%d delay %s, %d calls, %d hedged (%.1f%%), %d won by the hedge",
+				mPercentile, mDelay < 0 ? "unknown" : mDelay + " msec", mCalls, mHedges,
+				mCalls == 0 ? 0.0 : 100.0 * mHedges / mCalls, mHedgeWins);
+	}
+}
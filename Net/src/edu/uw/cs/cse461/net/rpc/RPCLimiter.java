@@ -0,0 +1,97 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * Admits calls to one method, or one service, as an RPCAdmissionPolicy says, and keeps the counts
+ * that dumpState() reports.  A call is admitted by tryAcquire(), and then must be finished by
+ * release(); start() notes that it's been given a thread.
+ */
+class RPCLimiter {
+	static final RPCLimiter[] NONE = new RPCLimiter[0];
+
+	// an over-target call cuts the limit to this fraction of itself
+	private static final double BACKOFF = 0.9;
+
+	private final String mPolicy;
+	private final int mMaxConcurrency;   // 0 for none
+	private final int mMaxQueued;        // 0 for none
+	private final int mTargetLatency;    // 0 for a fixed limit
+
+	// all guarded by this
+	private double mLimit;
+	private int mInFlight = 0;
+	private int mRunning = 0;
+	private long mLastDecrease = 0;
+	private long mAdmitted = 0;
+	private long mRejected = 0;
+	private double mAvgLatency = 0;
+
+	RPCLimiter(RPCAdmissionPolicy policy) {
+		if ( policy.mTargetLatency > 0 && policy.mMaxConcurrency == 0 )
+			throw new IllegalArgumentException("An adaptive limit needs a maximum concurrency");
+		mPolicy = policy.toString();
+		mMaxConcurrency = policy.mMaxConcurrency;
+		mMaxQueued = policy.mMaxQueued;
+		mTargetLatency = policy.mTargetLatency;
+		mLimit = mMaxConcurrency;
+	}
+
+	/**
+	 * Admits a call, unless that would put more calls in flight than the limit allows, or more
+	 * waiting for a thread than the queue limit does.
+	 * @return True if the call is admitted
+	 */
+	synchronized boolean tryAcquire() {
+		if ( (mMaxConcurrency > 0 && mInFlight >= (int)mLimit) || (mMaxQueued > 0 && mInFlight - mRunning >= mMaxQueued) ) {
+			mRejected++;
+			return false;
+		}
+		mInFlight++;
+		mAdmitted++;
+		return true;
+	}
+
+	synchronized void start() {
+		mRunning++;
+	}
+
+	/**
+	 * Finishes an admitted call.
+	 * @param latency How long it ran, in msec, or -1 if it wasn't run (or shouldn't count: e.g., a stream,
+	 *        whose time depends on its caller)
+	 * @param started True if start() was called for it
+	 */
+	synchronized void release(long latency, boolean started) {
+		mInFlight--;
+		if ( started ) mRunning--;
+		if ( latency < 0 ) return;
+		mAvgLatency = mAvgLatency == 0 ? latency : 0.9 * mAvgLatency + 0.1 * latency;
+		if ( mTargetLatency == 0 ) return;
+		long now = System.currentTimeMillis();
+		if ( latency > mTargetLatency ) {
+			// one slow burst is one decrease, not one per call in it
+			if ( now - mLastDecrease < mTargetLatency ) return;
+			mLimit = Math.max(1, mLimit * BACKOFF);
+			mLastDecrease = now;
+		} else {
+			mLimit = Math.min(mMaxConcurrency, mLimit + 1 / mLimit);
+		}
+	}
+
+	/**
+	 * Acquires all of limiters, or none of them.
+	 */
+	static boolean tryAcquire(RPCLimiter[] limiters) {
+		for ( int i=0; i<limiters.length; i++ ) {
+			if ( limiters[i].tryAcquire() ) continue;
+			for ( int j=0; j<i; j++ ) limiters[j].release(-1, false);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s; limit %s, %d in flight (%d running); %d admitted, %d rejected; avg latency %.1f msec",
+				mPolicy, mMaxConcurrency == 0 ? "none" : String.valueOf((int)mLimit), mInFlight, mRunning, mAdmitted, mRejected, mAvgLatency);
+	}
+}
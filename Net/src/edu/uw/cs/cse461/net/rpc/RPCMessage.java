@@ -1,21 +1,33 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.util.Log;
 
 /**
  * The message class hierarchy facilitates marshalling (encoding into the on-the-wire format)
  * and unmarshalling (decoding from the on-the-wire back to a Java object).  (This is also
  * called serialization, and is related to Java's specific notion of serialization.)
+ * <p>
+ * A message may carry binary attachments, which travel as raw frames of their own right after
+ * the JSON message, rather than Base64 encoded inside it.  The JSON says how many follow, in its
+ * "attachments" field.  Each attachment must fit in a frame (tcpmessagehandler.maxmsglength), and
+ * a message may have at most rpc.attachments.max of them.
  * @author zahorjan
  *
  */
@@ -24,11 +36,19 @@ class RPCMessage {
 	static int mNextRPCId = 0;
 	
 	protected JSONObject mObject;
+	protected List<ByteBuffer> mAttachments = Collections.emptyList();
 
 	private static synchronized int _nextRequestId() {
 		return ++mNextRPCId;
 	}
 	
+	/**
+	 * Allocates a message id, for a call that may be sent more than once (see setId()).
+	 */
+	static int nextId() {
+		return _nextRequestId();
+	}
+	
 	protected RPCMessage() throws JSONException {
 		mObject = new JSONObject().put("host", NetBase.theNetBase().hostname())
                                   .put("id", _nextRequestId());
@@ -43,6 +63,16 @@ class RPCMessage {
 		return mObject.getInt("id");
 	}
 	
+	/**
+	 * Gives the message an id allocated earlier by nextId(), in place of its own.  A retried call is
+	 * sent with the id of its first attempt, so the server can recognize it (see RPCReplayCache).
+	 * @return This message
+	 */
+	RPCMessage setId(int id) throws JSONException {
+		mObject.put("id", id);
+		return this;
+	}
+	
 	String type() throws JSONException {
 		return mObject.getString("type");
 	}
@@ -55,6 +85,70 @@ class RPCMessage {
 		return mObject;
 	}
 	
+	/**
+	 * Attaches binary buffers to the message.  Each is sent from its position to its limit.
+	 * @return This message
+	 */
+	RPCMessage attach(List<ByteBuffer> attachments) throws JSONException {
+		if ( attachments == null || attachments.isEmpty() ) return this;
+		mAttachments = attachments;
+		mObject.put("attachments", attachments.size());
+		return this;
+	}
+	
+	List<ByteBuffer> attachments() {
+		return mAttachments;
+	}
+	
+	/**
+	 * Sends the message, followed by its attachments.  No other message can come between them.
+	 */
+	void send(TCPMessageHandler tcpMsgHandler) throws IOException {
+		if ( mAttachments.isEmpty() ) {
+			tcpMsgHandler.sendMessage(mObject);
+			return;
+		}
+		tcpMsgHandler.sendMessages(frames());
+	}
+	
+	/**
+	 * Returns the message as the frames send() would send: the JSON, then the attachments.
+	 */
+	List<byte[]> frames() {
+		List<byte[]> frames = new ArrayList<byte[]>(mAttachments.size() + 1);
+		frames.add(mObject.toString().getBytes());
+		for ( ByteBuffer attachment : mAttachments ) frames.add(_bytes(attachment));
+		return frames;
+	}
+	
+	/**
+	 * Reads the attachments that follow a message just read, if it has any.
+	 * @param max The most attachments a message may have
+	 * @return The attachments, or an empty list
+	 * @throws IOException If the message says it has more than max.  The connection should be closed,
+	 *         since its attachments haven't been read.
+	 */
+	static List<ByteBuffer> readAttachments(TCPMessageHandler tcpMsgHandler, JSONObject message, int max) throws IOException {
+		int n = message.optInt("attachments", 0);
+		if ( n <= 0 ) return Collections.emptyList();
+		if ( n > max ) throw new IOException("Message has " + n + " attachments; at most " + max + " are allowed");
+		// the count is the peer's say-so, so the list grows as attachments actually arrive
+		List<ByteBuffer> attachments = new ArrayList<ByteBuffer>();
+		for ( int i=0; i<n; i++ ) attachments.add(ByteBuffer.wrap(tcpMsgHandler.readMessageAsBytes()));
+		return Collections.unmodifiableList(attachments);
+	}
+	
+	/**
+	 * Returns the bytes between buf's position and limit, without copying them if they're
+	 * exactly buf's backing array.
+	 */
+	private static byte[] _bytes(ByteBuffer buf) {
+		if ( buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length ) return buf.array();
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return bytes;
+	}
+	
 	@Override
 	public String toString() {
 		return mObject.toString();
@@ -69,6 +163,7 @@ class RPCMessage {
 			String type = jsonObj.getString("type"); 
 			if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(jsonObj);
 			if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(jsonObj);
+			if ( type.equalsIgnoreCase("batch") )   return new RPCBatchMessage(jsonObj);
 			if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(jsonObj);
 			if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(jsonObj);
 			String msg = "Got unrecognized type in message: " + type + " [" + jsonFormatString + "]"; 
@@ -97,6 +192,16 @@ class RPCMessage {
 			if ( mObject.has("args") ) return mObject.getJSONObject("args");
 			return null;
 		}
+
+		/**
+		 * Tells the server how long, in msec, the caller will wait for the reply.  It's a duration,
+		 * not a time, so the two clocks needn't agree.
+		 * @return This message
+		 */
+		RPCCallMessage budget(int msec) throws JSONException {
+			mObject.put("budget", msec);
+			return this;
+		}
 		/**
 		 * For sending RPCService -> RPCService control messages.
 		 * @author zahorjan
@@ -135,23 +240,45 @@ class RPCMessage {
 
 		/**
 		 * For sending normal RPC invocations.
+		 * <p>
+		 * The method is named either by app and method, or, if the server has told the caller
+		 * its method ids (see RPCMethodTable), by mid alone.
 		 * @author zahorjan
 		 *
 		 */
 		static public class RPCInvokeMessage extends RPCCallMessage {
 			RPCInvokeMessage(String service, String method, JSONObject args) throws JSONException {
-				mObject.put("type", "invoke")
-					   .put("app", service)
-					   .put("method", method);
+				this(service, method, -1, args);
+			}
+			
+			/**
+			 * @param mid The method's id on the server, or -1 to name it by service and method
+			 */
+			RPCInvokeMessage(String service, String method, int mid, JSONObject args) throws JSONException {
+				mObject.put("type", "invoke");
+				if ( mid >= 0 ) mObject.put("mid", mid);
+				else mObject.put("app", service)
+				            .put("method", method);
 				if ( args != null ) mObject.put("args", args);
 			}
 			
 			RPCInvokeMessage(JSONObject jsonObject) throws JSONException {
 				super(jsonObject);
-				mObject.put("type", "invoke")
-				       .put("app", jsonObject.getString("app"))
-				       .put("method", jsonObject.getString("method"));
+				mObject.put("type", "invoke");
+				if ( jsonObject.has("mid") ) mObject.put("mid", jsonObject.getInt("mid"));
+				else mObject.put("app", jsonObject.getString("app"))
+				            .put("method", jsonObject.getString("method"));
 				if ( jsonObject.has("args") ) mObject.put("args", jsonObject.getJSONObject("args"));
+				if ( jsonObject.has("stream") ) mObject.put("stream", jsonObject.getInt("stream"));
+			}
+			
+			/**
+			 * Asks for the result as a stream of chunks (see RPCStream), with window chunks of initial credit.
+			 * @return This message
+			 */
+			RPCInvokeMessage stream(int window) throws JSONException {
+				mObject.put("stream", window);
+				return this;
 			}
 			
 			String app() throws JSONException {
@@ -161,6 +288,64 @@ class RPCMessage {
 			String method() throws JSONException {
 				return mObject.getString("method");
 			}
+			
+			/**
+			 * Returns the method id, or -1 if the method is named instead.
+			 */
+			int mid() {
+				return mObject.optInt("mid", -1);
+			}
+		}
+
+		/**
+		 * For sending several invocations at once.  Each element of calls is an invocation's
+		 * mid or app and method, and its args.  The reply is a normal response whose value
+		 * holds a results array, with an OK or ERROR element for each call.
+		 */
+		static public class RPCBatchMessage extends RPCCallMessage {
+			RPCBatchMessage(JSONArray calls, boolean sequential) throws JSONException {
+				mObject.put("type", "batch")
+				       .put("calls", calls);
+				if ( sequential ) mObject.put("sequential", true);
+			}
+			
+			RPCBatchMessage(JSONObject jsonObject) throws JSONException {
+				super(jsonObject);
+				mObject.put("type", "batch")
+				       .put("calls", jsonObject.getJSONArray("calls"));
+				if ( jsonObject.optBoolean("sequential") ) mObject.put("sequential", true);
+			}
+			
+			JSONArray calls() throws JSONException {
+				return mObject.getJSONArray("calls");
+			}
+			
+			boolean sequential() {
+				return mObject.optBoolean("sequential");
+			}
+		}
+
+		/**
+		 * Sent by the caller of a streaming invocation as it consumes chunks: allows the server to send
+		 * credit more chunks of the reply to call callid.
+		 */
+		static public class RPCCreditMessage extends RPCCallMessage {
+			RPCCreditMessage(int callid, int credit) throws JSONException {
+				mObject.put("type", "credit")
+				       .put("callid", callid)
+				       .put("credit", credit);
+			}
+		}
+
+		/**
+		 * Sent by a caller that no longer wants the reply to call callid: one it has stopped reading
+		 * the stream of, or has stopped waiting for.
+		 */
+		static public class RPCCancelMessage extends RPCCallMessage {
+			RPCCancelMessage(int callid) throws JSONException {
+				mObject.put("type", "cancel")
+				       .put("callid", callid);
+			}
 		}
 	}
 	
@@ -206,6 +391,17 @@ class RPCMessage {
 			}
 		}
 
+		/**
+		 * One chunk of the reply to a streaming invocation.  The stream ends with a normal or error response.
+		 */
+		static public class RPCChunkResponseMessage extends RPCResponseMessage {
+			RPCChunkResponseMessage(int callid, JSONObject chunk) throws JSONException {
+				super(callid);
+				mObject.put("type", "chunk");
+				mObject.put("value", chunk);
+			}
+		}
+
 		static public class RPCErrorResponseMessage extends RPCResponseMessage {
 
 			public static final String FATAL_ERROR_RESPONSE = "{\"id\":-1, \"host\":\"" + NetBase.theNetBase().hostname() +
@@ -224,6 +420,17 @@ class RPCMessage {
 				mObject.put("type", "ERROR");
 				mObject.put("message", jsonObj.getString("message") );
 				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.getJSONObject("callargs"));
+				if ( jsonObj.optBoolean("overloaded") ) mObject.put("overloaded", true);
+			}
+			
+			/**
+			 * Marks the error as the server refusing the call, unperformed, because it's overloaded.
+			 * The caller gets an RPCOverloadedException.
+			 * @return This message
+			 */
+			RPCErrorResponseMessage overloaded() throws JSONException {
+				mObject.put("overloaded", true);
+				return this;
 			}
 		}
 	}
@@ -0,0 +1,200 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * An immutable table of the methods registered with RPCService.
+ * <p>
+ * Each (service, method) pair has a small integer id, its index in the table.  Ids are never
+ * reused or changed: registering a new handler for a name already in the table replaces the
+ * handler but keeps the id, and a new name gets the next id.  So an id a client learned
+ * from an earlier table still means the same method.
+ * <p>
+ * Tables are never modified.  with() returns a new table, which RPCService publishes through
+ * a volatile field, so looking up a handler takes no lock.
+ * <p>
+ * The table also holds the admission limiters (see RPCAdmissionPolicy) of methods and of whole services.
+ * A method keeps its limiter when its handler is replaced.
+ */
+class RPCMethodTable {
+	static final RPCMethodTable EMPTY = new RPCMethodTable(new String[0], new String[0], new RPCCallableMethod[0],
+			new RPCResponseCache[0], new HashMap<String, HashMap<String, Integer>>(), new RPCLimiter[0], new HashMap<String, RPCLimiter>());
+
+	private final String[] mServices;
+	private final String[] mMethods;
+	private final RPCCallableMethod[] mHandlers;
+	private final RPCResponseCache[] mCaches;   // null for a method whose results aren't cached
+	// service name -> method name -> id.  Nested, so lookups don't have to build a key.
+	private final HashMap<String, HashMap<String, Integer>> mIds;
+	private final RPCLimiter[] mLimiters;   // null for a method without a limit of its own
+	private final HashMap<String, RPCLimiter> mServiceLimiters;
+	// the limiters a call of each method must pass: its service's, then its own
+	private final RPCLimiter[][] mAdmission;
+
+	private RPCMethodTable(String[] services, String[] methods, RPCCallableMethod[] handlers, RPCResponseCache[] caches,
+			HashMap<String, HashMap<String, Integer>> ids, RPCLimiter[] limiters, HashMap<String, RPCLimiter> serviceLimiters) {
+		mServices = services;
+		mMethods = methods;
+		mHandlers = handlers;
+		mCaches = caches;
+		mIds = ids;
+		mLimiters = limiters;
+		mServiceLimiters = serviceLimiters;
+		mAdmission = new RPCLimiter[handlers.length][];
+		for ( int id=0; id<handlers.length; id++ ) {
+			RPCLimiter service = serviceLimiters.get(services[id]);
+			if ( service != null && limiters[id] != null ) mAdmission[id] = new RPCLimiter[] { service, limiters[id] };
+			else if ( service != null ) mAdmission[id] = new RPCLimiter[] { service };
+			else if ( limiters[id] != null ) mAdmission[id] = new RPCLimiter[] { limiters[id] };
+			else mAdmission[id] = RPCLimiter.NONE;
+		}
+	}
+
+	/**
+	 * Returns a table like this one, but with serviceName.methodName bound to handler, and its
+	 * results cached in cache (null for no caching).  A replaced handler's cache is dropped with it.
+	 */
+	RPCMethodTable with(String serviceName, String methodName, RPCCallableMethod handler, RPCResponseCache cache) {
+		int id = id(serviceName, methodName);
+		if ( id >= 0 ) {
+			RPCCallableMethod[] handlers = mHandlers.clone();
+			RPCResponseCache[] caches = mCaches.clone();
+			handlers[id] = handler;
+			caches[id] = cache;
+			return new RPCMethodTable(mServices, mMethods, handlers, caches, mIds, mLimiters, mServiceLimiters);
+		}
+		id = mHandlers.length;
+		HashMap<String, HashMap<String, Integer>> ids = new HashMap<String, HashMap<String, Integer>>();
+		for ( String service : mIds.keySet() ) ids.put(service, new HashMap<String, Integer>(mIds.get(service)));
+		HashMap<String, Integer> serviceIds = ids.get(serviceName);
+		if ( serviceIds == null ) {
+			serviceIds = new HashMap<String, Integer>();
+			ids.put(serviceName, serviceIds);
+		}
+		serviceIds.put(methodName, id);
+		String[] services = Arrays.copyOf(mServices, id + 1);
+		String[] methods = Arrays.copyOf(mMethods, id + 1);
+		RPCCallableMethod[] handlers = Arrays.copyOf(mHandlers, id + 1);
+		RPCResponseCache[] caches = Arrays.copyOf(mCaches, id + 1);
+		services[id] = serviceName;
+		methods[id] = methodName;
+		handlers[id] = handler;
+		caches[id] = cache;
+		return new RPCMethodTable(services, methods, handlers, caches, ids, Arrays.copyOf(mLimiters, id + 1), mServiceLimiters);
+	}
+
+	/**
+	 * Returns a table like this one, but with the calls of the method with the given id admitted by
+	 * limiter (null for no limit of its own).
+	 */
+	RPCMethodTable withLimiter(int id, RPCLimiter limiter) {
+		RPCLimiter[] limiters = mLimiters.clone();
+		limiters[id] = limiter;
+		return new RPCMethodTable(mServices, mMethods, mHandlers, mCaches, mIds, limiters, mServiceLimiters);
+	}
+
+	/**
+	 * Returns a table like this one, but with the calls of all serviceName's methods, registered now or
+	 * later, admitted by limiter (null for no limit on the service as a whole).
+	 */
+	RPCMethodTable withServiceLimiter(String serviceName, RPCLimiter limiter) {
+		HashMap<String, RPCLimiter> serviceLimiters = new HashMap<String, RPCLimiter>(mServiceLimiters);
+		if ( limiter == null ) serviceLimiters.remove(serviceName);
+		else serviceLimiters.put(serviceName, limiter);
+		return new RPCMethodTable(mServices, mMethods, mHandlers, mCaches, mIds, mLimiters, serviceLimiters);
+	}
+
+	/**
+	 * Returns the id of serviceName.methodName, or -1 if it isn't in the table.
+	 */
+	int id(String serviceName, String methodName) {
+		HashMap<String, Integer> serviceIds = mIds.get(serviceName);
+		if ( serviceIds == null ) return -1;
+		Integer id = serviceIds.get(methodName);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the handler with the given id, or null if there is none.
+	 */
+	RPCCallableMethod handler(int id) {
+		return id >= 0 && id < mHandlers.length ? mHandlers[id] : null;
+	}
+
+	/**
+	 * Returns the cache of the results of the method with the given id, or null if they aren't cached.
+	 */
+	RPCResponseCache cache(int id) {
+		return id >= 0 && id < mCaches.length ? mCaches[id] : null;
+	}
+
+	/**
+	 * Returns the limiters a call of the method with the given id must pass (possibly none).
+	 */
+	RPCLimiter[] admission(int id) {
+		return id >= 0 && id < mAdmission.length ? mAdmission[id] : RPCLimiter.NONE;
+	}
+
+	RPCLimiter limiter(int id) {
+		return mLimiters[id];
+	}
+
+	/**
+	 * Returns the limiters of whole services, by service name.  Not to be modified.
+	 */
+	HashMap<String, RPCLimiter> serviceLimiters() {
+		return mServiceLimiters;
+	}
+
+	/**
+	 * Returns the handler for serviceName.methodName, or null if there is none.
+	 */
+	RPCCallableMethod handler(String serviceName, String methodName) {
+		return handler(id(serviceName, methodName));
+	}
+
+	String service(int id) {
+		return mServices[id];
+	}
+
+	String method(int id) {
+		return mMethods[id];
+	}
+
+	int size() {
+		return mHandlers.length;
+	}
+
+	/**
+	 * Encodes the names in the table for the connect handshake: a JSONArray whose element i is
+	 * the two element array [service, method] of the method with id i.
+	 */
+	JSONArray marshall() {
+		JSONArray table = new JSONArray();
+		for ( int i=0; i<mServices.length; i++ ) {
+			table.put(new JSONArray().put(mServices[i]).put(mMethods[i]));
+		}
+		return table;
+	}
+
+	/**
+	 * Decodes the output of marshall() into a service name -> method name -> id map.
+	 */
+	static HashMap<String, HashMap<String, Integer>> unmarshallIds(JSONArray table) throws JSONException {
+		HashMap<String, HashMap<String, Integer>> ids = new HashMap<String, HashMap<String, Integer>>();
+		for ( int i=0; i<table.length(); i++ ) {
+			JSONArray entry = table.getJSONArray(i);
+			HashMap<String, Integer> serviceIds = ids.get(entry.getString(0));
+			if ( serviceIds == null ) {
+				serviceIds = new HashMap<String, Integer>();
+				ids.put(entry.getString(0), serviceIds);
+			}
+			serviceIds.put(entry.getString(1), i);
+		}
+		return ids;
+	}
+}
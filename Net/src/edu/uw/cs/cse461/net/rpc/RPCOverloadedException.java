@@ -0,0 +1,14 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * The failure of a call the server refused because it was overloaded: the method or service was at
+ * its admission limit (see RPCAdmissionPolicy), or the server had no room to queue the call.  The
+ * call wasn't performed, so it's safe to try again, preferably after backing off.
+ */
+public class RPCOverloadedException extends RPCRemoteException {
+	private static final long serialVersionUID = 1L;
+
+	public RPCOverloadedException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,16 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+/**
+ * The failure of a call, as reported by the server in an error reply: the remote method threw, or
+ * the server couldn't call it (e.g., there's no such method).  Other IOExceptions from a call mean
+ * no reply arrived: it timed out, or the connection failed.
+ */
+public class RPCRemoteException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public RPCRemoteException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,182 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The replies to recent calls, so that a call that arrives again (because the caller retried it,
+ * on another connection, after the first one failed) is answered with the first call's reply
+ * rather than executed again.  This gives calls at-most-once semantics, for as long as their
+ * replies are remembered.
+ * <p>
+ * Calls are keyed by the caller's session (an id it chooses afresh each time it starts, and sends
+ * when it connects) and the call's id, which the caller reuses when it retries.  A call that arrives
+ * while its first copy is still running waits for that copy's reply.
+ * <p>
+ * Replies are kept as the frames that were sent, for up to ttl msec, and are evicted oldest first
+ * when there are more than maxEntries of them or they total more than maxBytes.  Calls still running
+ * are never evicted.  Like RPCResponseCache, the table is striped by key to reduce contention.
+ */
+class RPCReplayCache {
+	private static final int SEGMENTS = 16;
+
+	private final int mTTL;
+	private final int mMaxEntries;
+	private final long mMaxBytes;
+	private final Segment[] mSegments;
+	private final AtomicLong mReplays = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+
+	private static class Entry {
+		final CompletableFuture<List<byte[]>> reply = new CompletableFuture<List<byte[]>>();
+		final long created;
+		long bytes = 0;
+
+		Entry(long created) {
+			this.created = created;
+		}
+	}
+
+	/**
+	 * The entries whose keys hash to one segment, oldest first.
+	 */
+	private class Segment {
+		private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+		private final int mMaxEntries;
+		private final long mMaxBytes;
+		private long mBytes = 0;
+
+		Segment(int maxEntries, long maxBytes) {
+			mMaxEntries = maxEntries;
+			mMaxBytes = maxBytes;
+		}
+
+		synchronized CompletableFuture<List<byte[]>> begin(String key, long now) {
+			_expire(now);
+			Entry entry = mEntries.get(key);
+			if ( entry != null ) return entry.reply;
+			mEntries.put(key, new Entry(now));
+			return null;
+		}
+
+		void finish(String key, List<byte[]> frames) {
+			Entry entry;
+			synchronized(this) {
+				entry = mEntries.get(key);
+				if ( entry == null ) return;
+				for ( byte[] frame : frames ) entry.bytes += frame.length;
+				mBytes += entry.bytes;
+				_evict();
+			}
+			// outside the lock: completing sends the reply to any copies that are waiting
+			entry.reply.complete(frames);
+		}
+
+		void forget(String key, List<byte[]> frames) {
+			Entry entry;
+			synchronized(this) {
+				entry = mEntries.remove(key);
+				if ( entry == null ) return;
+			}
+			entry.reply.complete(frames);
+		}
+
+		/**
+		 * Drops completed entries older than the TTL.  Stops at the oldest entry still running.
+		 */
+		private void _expire(long now) {
+			Iterator<Entry> oldest = mEntries.values().iterator();
+			while ( oldest.hasNext() ) {
+				Entry entry = oldest.next();
+				// entries are in the order they were created, so the rest are fresher still
+				if ( entry.created + mTTL > now ) break;
+				// a call still running is kept, but mustn't keep the finished ones after it from expiring
+				if ( !entry.reply.isDone() ) continue;
+				oldest.remove();
+				mBytes -= entry.bytes;
+			}
+		}
+
+		private void _evict() {
+			Iterator<Entry> oldest = mEntries.values().iterator();
+			while ( oldest.hasNext() && (mEntries.size() > mMaxEntries || mBytes > mMaxBytes) ) {
+				Entry entry = oldest.next();
+				if ( !entry.reply.isDone() ) continue;
+				oldest.remove();
+				mBytes -= entry.bytes;
+				mEvictions.incrementAndGet();
+			}
+		}
+
+		synchronized int size() {
+			return mEntries.size();
+		}
+
+		synchronized long bytes() {
+			return mBytes;
+		}
+	}
+
+	RPCReplayCache(int ttl, int maxEntries, long maxBytes) {
+		mTTL = ttl;
+		mMaxEntries = maxEntries;
+		mMaxBytes = maxBytes;
+		int segments = Math.min(SEGMENTS, maxEntries);
+		mSegments = new Segment[segments];
+		for ( int i=0; i<segments; i++ ) mSegments[i] = new Segment(Math.max(1, maxEntries / segments), maxBytes / segments);
+	}
+
+	/**
+	 * Notes the start of a call.  Returns null if it's the first time the call has been seen, in which
+	 * case the caller must run it and then call finish().  Otherwise returns the future reply of the
+	 * first copy, which is already complete if that copy has finished.
+	 */
+	CompletableFuture<List<byte[]>> begin(String session, int callid) {
+		String key = _key(session, callid);
+		CompletableFuture<List<byte[]>> reply = _segment(key).begin(key, System.currentTimeMillis());
+		if ( reply != null ) mReplays.incrementAndGet();
+		return reply;
+	}
+
+	/**
+	 * Records the reply to a call begun with begin(), and sends it to any copies waiting for it.
+	 */
+	void finish(String session, int callid, List<byte[]> frames) {
+		String key = _key(session, callid);
+		_segment(key).finish(key, frames);
+	}
+
+	/**
+	 * Like finish(), but the reply isn't kept: the next copy of the call to arrive runs it again.
+	 * For calls whose reply (e.g., "Deadline exceeded") is no good to a later copy.
+	 */
+	void forget(String session, int callid, List<byte[]> frames) {
+		String key = _key(session, callid);
+		_segment(key).forget(key, frames);
+	}
+
+	private static String _key(String session, int callid) {
+		return session + "#" + callid;
+	}
+
+	private Segment _segment(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return mSegments[(h & 0x7fffffff) % mSegments.length];
+	}
+
+	@Override
+	public String toString() {
+		int entries = 0;
+		long bytes = 0;
+		for ( Segment segment : mSegments ) {
+			entries += segment.size();
+			bytes += segment.bytes();
+		}
+		return String.format("ttl %d msec, max %d entries / %d bytes; %d entries / %d bytes; %d replayed, %d evicted",
+				mTTL, mMaxEntries, mMaxBytes, entries, bytes, mReplays.get(), mEvictions.get());
+	}
+}
@@ -0,0 +1,41 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * The reply to a call made with RPCCall.invokeWithAttachments(): what the remote method returned,
+ * and any binary attachments it added (see RPCCallContext.attach()).
+ */
+public class RPCReply {
+	private final JSONObject mValue;
+	private final List<ByteBuffer> mAttachments;
+
+	RPCReply(JSONObject value, List<ByteBuffer> attachments) {
+		mValue = value;
+		mAttachments = attachments;
+	}
+
+	/**
+	 * Returns what the remote method returned (possibly null).
+	 */
+	public JSONObject value() {
+		return mValue;
+	}
+
+	/**
+	 * Returns the reply's attachments, in the order they were attached.  The list can't be modified.
+	 */
+	public List<ByteBuffer> attachments() {
+		return mAttachments;
+	}
+
+	/**
+	 * Returns the i'th attachment.
+	 */
+	public ByteBuffer attachment(int i) {
+		return mAttachments.get(i);
+	}
+}
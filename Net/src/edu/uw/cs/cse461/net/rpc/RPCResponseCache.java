@@ -0,0 +1,176 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * The cached results of one method, kept as its RPCCachePolicy says.
+ * <p>
+ * The cache is striped: a key's hash picks one of a fixed number of segments, each an LRU list
+ * with its own lock.  Calls with different keys rarely contend, and the method itself is always
+ * called without holding a lock.  (Concurrent misses on the same key each call the method; the
+ * last result stored wins.)
+ * <p>
+ * The entry and byte bounds are on the whole cache, counted across segments.  When a store takes
+ * the cache over a bound, entries are evicted until it's back under: each eviction takes the least
+ * recently used entry of the next segment in turn, so it's LRU within a segment and round robin
+ * among them.  (Concurrent stores may briefly take the cache over its bounds.)
+ */
+class RPCResponseCache {
+	private static final int SEGMENTS = 16;
+
+	// copied from the policy, which may be changed (or reused) after registration
+	private final String mPolicy;
+	private final int mTTL;
+	private final RPCCachePolicy.KeyFunction mKey;
+	private final int mMaxEntries;
+	private final long mMaxBytes;    // 0 for no bound
+	private final Segment[] mSegments;
+	private final AtomicInteger mEntries = new AtomicInteger();
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicInteger mHand = new AtomicInteger();     // the next segment to evict from
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+	private final AtomicLong mExpirations = new AtomicLong();
+
+	private static class Entry {
+		final JSONObject value;
+		final int bytes;
+		final long expires;    // 0 for never
+
+		Entry(JSONObject value, int bytes, long expires) {
+			this.value = value;
+			this.bytes = bytes;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * An LRU list: a LinkedHashMap in access order, whose eldest entry is the least recently used.
+	 */
+	private class Segment {
+		private final LinkedHashMap<String, Entry> mLRU = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+		synchronized JSONObject get(String key, long now) {
+			Entry entry = mLRU.get(key);
+			if ( entry == null ) return null;
+			if ( entry.expires != 0 && entry.expires <= now ) {
+				mLRU.remove(key);
+				_removed(entry);
+				mExpirations.incrementAndGet();
+				return null;
+			}
+			return entry.value;
+		}
+
+		synchronized void put(String key, Entry entry) {
+			Entry old = mLRU.put(key, entry);
+			if ( old != null ) _removed(old);
+			mEntries.incrementAndGet();
+			mBytes.addAndGet(entry.bytes);
+		}
+
+		/**
+		 * Evicts the least recently used entry, unless it's keep's.
+		 * @return True if an entry was evicted
+		 */
+		synchronized boolean evictEldest(String keep) {
+			Iterator<Map.Entry<String, Entry>> lru = mLRU.entrySet().iterator();
+			if ( !lru.hasNext() ) return false;
+			Map.Entry<String, Entry> eldest = lru.next();
+			if ( eldest.getKey().equals(keep) ) return false;
+			lru.remove();
+			_removed(eldest.getValue());
+			mEvictions.incrementAndGet();
+			return true;
+		}
+	}
+
+	RPCResponseCache(RPCCachePolicy policy) {
+		mPolicy = policy.toString();
+		mTTL = policy.mTTL;
+		mKey = policy.mKey;
+		mMaxEntries = policy.mMaxEntries;
+		mMaxBytes = policy.mMaxBytes;
+		mSegments = new Segment[SEGMENTS];
+		for ( int i=0; i<SEGMENTS; i++ ) mSegments[i] = new Segment();
+	}
+
+	/**
+	 * Returns the result of calling method with args: a cached result if there's a fresh one,
+	 * and otherwise the result of actually calling it, which is then cached.
+	 */
+	JSONObject call(RPCCallableMethod method, JSONObject args) throws Exception {
+		RPCCallContext context = RPCCallContext.current();
+		if ( context != null && !context.attachments().isEmpty() ) return method.handleCall(args);
+		String key = mKey.key(args);
+		if ( key == null ) return method.handleCall(args);
+
+		Segment segment = _segment(key);
+		long now = System.currentTimeMillis();
+		JSONObject value = segment.get(key, now);
+		if ( value != null ) {
+			mHits.incrementAndGet();
+			return value;
+		}
+		mMisses.incrementAndGet();
+		value = method.handleCall(args);
+		// a null result isn't cached, since it couldn't be told from a miss; nor is one with attachments
+		if ( value != null && (context == null || context.replyAttachments().isEmpty()) ) {
+			int bytes = key.length() + value.toString().length();
+			// nor is one that would fill the cache by itself
+			if ( mMaxBytes > 0 && bytes > mMaxBytes ) return value;
+			long expires = mTTL == 0 ? 0 : now + mTTL;
+			segment.put(key, new Entry(value, bytes, expires));
+			_trim(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Evicts entries, other than keep's, until the cache is within its bounds.  Segments are
+	 * locked one at a time.
+	 */
+	private void _trim(String keep) {
+		// gives up after a pass over the segments evicts nothing, as when keep's is the only entry
+		int idle = 0;
+		while ( idle < mSegments.length && _over() ) {
+			Segment segment = mSegments[(mHand.getAndIncrement() & 0x7fffffff) % mSegments.length];
+			if ( segment.evictEldest(keep) ) idle = 0;
+			else idle++;
+		}
+	}
+
+	private boolean _over() {
+		return mEntries.get() > mMaxEntries || (mMaxBytes > 0 && mBytes.get() > mMaxBytes);
+	}
+
+	private void _removed(Entry entry) {
+		mEntries.decrementAndGet();
+		mBytes.addAndGet(-entry.bytes);
+	}
+
+	private Segment _segment(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return mSegments[(h & 0x7fffffff) % mSegments.length];
+	}
+
+	/**
+	 * The policy, current size, and cumulative counts.
+	 */
+	@Override
+	public String toString() {
+		long hits = mHits.get();
+		long misses = mMisses.get();
+		return String.format("%s; %d entries / %d bytes; %d hits, %d misses (%.1f%% hits), %d evictions, %d expirations",
+				mPolicy, mEntries.get(), mBytes.get(), hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+				mEvictions.get(), mExpirations.get());
+	}
+}
@@ -2,29 +2,39 @@ package edu.uw.cs.cse461.net.rpc;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.AbstractMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.FrameCompressor;
+import edu.uw.cs.cse461.net.tcpmessagehandler.SocketOptionProfile;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
@@ -38,21 +48,56 @@ import edu.uw.cs.cse461.util.Log;
 public class RPCService extends NetLoadableService implements Runnable, RPCServiceInterface {
 	private static final String TAG="RPCService";
 
-	private final HashMap<Map.Entry<String, String>, RPCCallableMethod> callbacks = new HashMap<Map.Entry<String, String>, RPCCallableMethod>();
+	// replaced, never modified, by registerHandler(), so the dispatch path reads it without locking
+	private volatile RPCMethodTable mMethods = RPCMethodTable.EMPTY;
 	private ServerSocket mServerSocket;
 	private int localPort;
+	private final int mPersistenceTimeout;
+	private final int mMaxInFlight;
+	private final int mMaxAttachments;
+	private final RPCServiceExecutor mConnections;
+	private final RPCServiceExecutor mCalls;
+	private final boolean mRunCallsWhenFull;
+	private final RPCReplayCache mReplay;   // null if calls aren't remembered
+	private final AtomicLong mDropped = new AtomicLong();   // calls not performed because they'd been cancelled
+	private final RPCAdmissionPolicy mDefaultAdmission;    // for each method registered; null for none
+	private static final String OVERLOADED = "Server overloaded";
 
+	/**
+	 * Handles one connection; run by the connection executor.  Calls on a persistent connection are
+	 * handed to the call executor as they arrive, so they may run concurrently and complete out of order.
+	 * If the call executor is full, the call is either run on this thread or refused with a "Server overloaded"
+	 * error, depending on rpc.server.calls.full.  A streaming call is always refused: run here, it would
+	 * wait for credit that only this thread can read.
+	 * At most rpc.server.maxinflight calls per connection are outstanding; once that many
+	 * are, this thread stops reading until one completes, so a client that pipelines
+	 * faster than we can serve is held back by TCP flow control.  Streaming calls don't count: they
+	 * wait on credit, which only this thread reads, so it mustn't stop reading while they're waiting.
+	 * (They're bounded by the call executor and admission control instead.)
+	 * <p>
+	 * Before that, a call must be admitted by the limits on its method and service (see RPCAdmissionPolicy);
+	 * one that isn't is refused at once, as overloaded, without being queued.
+	 * <p>
+	 * Credit and cancel messages aren't calls.  They're for calls in progress (credit only for streaming
+	 * calls; see RPCStreamWriter), and are handled by this thread as they arrive.  A cancelled call that
+	 * hasn't started, or whose caller's timeout has expired before it starts, isn't performed.
+	 */
 	private class SocketThread implements Runnable {
 		private Socket sock;
+		// the streaming calls in progress on this connection, by call id
+		private final ConcurrentHashMap<Integer, RPCStreamWriter> streams = new ConcurrentHashMap<Integer, RPCStreamWriter>();
+		// the contexts of all the calls in progress on this connection, by call id, so they can be cancelled
+		private final ConcurrentHashMap<Integer, RPCCallContext> calls = new ConcurrentHashMap<Integer, RPCCallContext>();
 
 		public SocketThread(Socket sock) {
 			this.sock = sock;
 		}
 		@Override
 		public void run() {
-			// should really spawn a thread here, but the code is already complicated enough that we don't bother
 			try {
 				TCPMessageHandler tcpMsgHandler = new TCPMessageHandler(sock);
+				tcpMsgHandler.stats().setOwner(loadablename());
+				tcpMsgHandler.applySocketOptions(loadablename());
 				JSONObject request = tcpMsgHandler.readMessageAsJSONObject();
 				String type = request.getString("type");
 				if (!type.equals("control")) {
@@ -61,46 +106,113 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 				int callid = request.getInt("id");
 				JSONObject options = null;
 				boolean persist = false;
+				String compression = null;
+				String session = null;
 
 				if (request.has("options")) {
 					options = request.getJSONObject("options");
 					persist =  options.has("connection") && options.getString("connection").equals("keep-alive");
+					compression = FrameCompressor.negotiate(options.optString("compression", null));
+					if (mReplay != null) session = options.optString("session", null);
 				}
 
-				RPCMessage msg = null;
-
-				if (persist) {
-					msg = new RPCNormalResponseMessage(callid, options);
-				} else {
-					msg = new RPCResponseMessage(callid);
-				}
+				// the reply echoes the options we've agreed to
+				JSONObject replyOptions = new JSONObject();
+				if (persist) replyOptions.put("connection", "keep-alive");
+				if (compression != null) replyOptions.put("compression", compression);
+				// so the caller knows it's safe to retry calls
+				if (session != null) replyOptions.put("replay", true);
+				// so the caller can name methods by id from now on
+				if (options != null && options.optBoolean("methodids")) replyOptions.put("methods", mMethods.marshall());
+				RPCMessage msg = new RPCNormalResponseMessage(callid, replyOptions);
 				tcpMsgHandler.sendMessage(msg.marshall());
+				tcpMsgHandler.compressor().setCodec(compression);
 
-				while (true) { 
-
+				if (!persist) {
+					// nothing reads credit from a non-persistent connection, so its stream isn't flow controlled
 					JSONObject invocation = tcpMsgHandler.readMessageAsJSONObject();
-					String invocationType = invocation.getString("type");
-					if (!invocationType.equals("invoke")) {
-						throw new IOException("The type was not of type invoke");
+					List<ByteBuffer> attachments = RPCMessage.readAttachments(tcpMsgHandler, invocation, mMaxAttachments);
+					RPCCallContext context = new RPCCallContext(attachments, _deadline(invocation));
+					if (!context.admit(_admission(invocation))) {
+						_reply(tcpMsgHandler, _overloadedReply(invocation));
+						return;
 					}
-					String serviceName = invocation.getString("app");
-					int invocationCallId = invocation.getInt("id");
-					String methodName = invocation.getString("method");
-					JSONObject args = invocation.getJSONObject("args");
-
-					RPCCallableMethod method = getRegistrationFor(serviceName, methodName);
-					JSONObject value = method.handleCall(args);
-					RPCNormalResponseMessage reply = new RPCNormalResponseMessage(invocationCallId, value);
-					tcpMsgHandler.sendMessage(reply.marshall());
+					RPCStreamWriter stream = _streamWriter(tcpMsgHandler, invocation, context, Integer.MAX_VALUE);
+					try {
+						_dispatch(tcpMsgHandler, invocation, context, stream, session);
+					} finally {
+						context.release(stream == null);
+					}
+					return;
+				}
 
-					if (!persist) {
+				// a persistent connection that sits idle this long is closed
+				tcpMsgHandler.setTimeout(mPersistenceTimeout);
+				Semaphore inFlight = new Semaphore(mMaxInFlight);
+				final String callerSession = session;
+				while (!mAmShutdown) {
+					final JSONObject invocation;
+					try {
+						invocation = tcpMsgHandler.readMessageAsJSONObject();
+					} catch (SocketTimeoutException e) {
+						// thrown only between messages.  A connection with calls still running, or streaming a
+						// reply however slowly its caller consumes it, isn't idle.
+						if (!streams.isEmpty() || !calls.isEmpty()) continue;
 						break;
 					}
+					// read here, since they're the next frames on the connection
+					final List<ByteBuffer> attachments = RPCMessage.readAttachments(tcpMsgHandler, invocation, mMaxAttachments);
+					if (_control(invocation)) continue;
+					// the deadline is taken as the call arrives, so time spent waiting to start counts against it
+					final RPCCallContext context = new RPCCallContext(attachments, _deadline(invocation));
+					// refused at once, rather than queued, if its method or service is at its limit
+					if (!context.admit(_admission(invocation))) {
+						_reply(tcpMsgHandler, _overloadedReply(invocation));
+						continue;
+					}
+					final RPCStreamWriter stream = _streamWriter(tcpMsgHandler, invocation, context, -1);
+					// a stream takes no permit, lest we stop reading the credit it's waiting for
+					if (stream == null) inFlight.acquire();
+					// registered now, so that a cancel read before the call starts finds it
+					final int invocationCallId = invocation.optInt("id", -1);
+					if (stream != null) streams.put(invocationCallId, stream);
+					calls.put(invocationCallId, context);
+					Runnable call = new Runnable() {
+						@Override
+						public void run() {
+							try {
+								_dispatch(tcpMsgHandler, invocation, context, stream, callerSession);
+							} finally {
+								if (stream != null) streams.remove(invocationCallId);
+								calls.remove(invocationCallId, context);
+								// a stream's time depends on how fast its caller reads, so it says nothing about load
+								context.release(stream == null);
+								if (stream == null) inFlight.release();
+							}
+						}
+					};
+					if (mCalls.execute(call)) continue;
+					// the call executor is full
+					if (mRunCallsWhenFull && stream == null) {
+						call.run();
+					} else {
+						_reply(tcpMsgHandler, _overloadedReply(invocation));
+						if (stream != null) streams.remove(invocationCallId);
+						calls.remove(invocationCallId, context);
+						context.release(false);
+						if (stream == null) inFlight.release();
+					}
 				}
+				// let outstanding calls send their replies before closing; streams would wait for credit we won't read
+				_cancelStreams("connection closing");
+				inFlight.acquire(mMaxInFlight);
 
+			} catch (EOFException e) {
+				// the caller closed the connection
 			} catch (Exception e) {
-
+				Log.w(TAG, "Closing RPC connection from " + sock.getInetAddress() + ": " + e.getMessage());
 			} finally {
+				_cancelStreams("connection lost");
 				try {
 					sock.close();
 				} catch (IOException e) {
@@ -111,6 +223,293 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 
 		}	
 
+		/**
+		 * Handles a credit or cancel message.  Returns false if msg is neither.
+		 */
+		private boolean _control(JSONObject msg) {
+			String type = msg.optString("type");
+			if (!type.equals("credit") && !type.equals("cancel")) return false;
+			// the call may have completed already
+			int callid = msg.optInt("callid", -1);
+			RPCStreamWriter stream = streams.get(callid);
+			if (type.equals("credit")) {
+				if (stream != null) stream.grant(msg.optInt("credit"));
+				return true;
+			}
+			RPCCallContext context = calls.get(callid);
+			if (context != null) context.cancel("Cancelled by the caller");
+			if (stream != null) stream.cancel("cancelled by the caller");
+			return true;
+		}
+
+		private void _cancelStreams(String why) {
+			for (RPCStreamWriter stream : streams.values()) stream.cancel(why);
+		}
+	}
+
+	/**
+	 * Performs one invocation, or a batch of them, and sends its reply: the method's return value, or an error
+	 * response if the call can't be made or the method throws.  Replies are sent as calls complete,
+	 * tagged with the call's id, so callers must not assume they arrive in order.
+	 * <p>
+	 * If the caller has a session (see RPCReplayCache), the reply is remembered, and a retry of the call
+	 * gets the same reply rather than running the call again.
+	 * @param context The call's context, which holds the invocation's attachments and says whether the call is cancelled
+	 * @param stream Where a streaming invocation's result goes; null if the invocation isn't streaming
+	 * @param session The caller's session, or null if its calls aren't to be remembered
+	 */
+	private void _dispatch(TCPMessageHandler tcpMsgHandler, JSONObject invocation, RPCCallContext context, RPCStreamWriter stream, String session) {
+		int invocationCallId;
+		try {
+			invocationCallId = invocation.getInt("id");
+		} catch (JSONException e) {
+			Log.w(TAG, "Dropping unusable invocation: " + invocation);
+			return;
+		}
+		// a stream's chunks aren't kept, so it can't be replayed
+		boolean remember = session != null && stream == null && mReplay != null;
+		if (remember) {
+			CompletableFuture<List<byte[]>> first = mReplay.begin(session, invocationCallId);
+			if (first != null) {
+				// we've run this call, or are running it, already
+				first.thenAccept(frames -> _reply(tcpMsgHandler, frames));
+				return;
+			}
+		}
+		RPCMessage reply = _perform(invocation, invocationCallId, context, stream);
+		List<byte[]> frames = reply == null ? Collections.<byte[]>emptyList() : reply.frames();
+		// a cancelled call's reply isn't remembered: a retry may have time to make the call
+		if (remember && context.isCancelled()) mReplay.forget(session, invocationCallId, frames);
+		else if (remember) mReplay.finish(session, invocationCallId, frames);
+		_reply(tcpMsgHandler, frames);
+	}
+
+	/**
+	 * Performs an invocation (or batch), returning its reply, or null if no reply can be built.
+	 * The method runs with context as its RPCCallContext, and whatever it attaches to the context
+	 * is attached to the reply.  If the call has been cancelled, it isn't performed, and the reply
+	 * is an error.
+	 */
+	private RPCMessage _perform(JSONObject invocation, int invocationCallId, RPCCallContext context, RPCStreamWriter stream) {
+		context.enter();
+		try {
+			try {
+				String cancelled = context.cancelReason();
+				if (cancelled != null) {
+					mDropped.incrementAndGet();
+					throw new IOException(cancelled);
+				}
+				context.start();
+				RPCMessage reply;
+				String invocationType = invocation.optString("type");
+				if (invocationType.equals("invoke") && stream != null) {
+					reply = new RPCNormalResponseMessage(invocationCallId, _callStream(invocation, stream));
+				} else if (invocationType.equals("invoke")) {
+					reply = new RPCNormalResponseMessage(invocationCallId, _call(invocation));
+				} else if (invocationType.equals("batch")) {
+					RPCBatchMessage batch = new RPCBatchMessage(invocation);
+					reply = new RPCNormalResponseMessage(invocationCallId, new JSONObject().put("results", _callBatch(batch.calls(), batch.sequential(), context)));
+				} else {
+					throw new IOException("The type was not of type invoke");
+				}
+				return reply.attach(context.replyAttachments());
+			} catch (Exception e) {
+				return new RPCErrorResponseMessage(invocationCallId, e.toString(), null);
+			}
+		} catch (JSONException e) {
+			Log.w(TAG, "Can't build reply to invocation: " + invocation);
+			return null;
+		} finally {
+			context.exit();
+		}
+	}
+
+	/**
+	 * Calls the method an invocation names and returns its result, which may come from the method's
+	 * response cache.
+	 */
+	private JSONObject _call(JSONObject invocation) throws Exception {
+		RPCMethodTable methods = mMethods;
+		int id = _methodId(methods, invocation);
+		RPCResponseCache cache = methods.cache(id);
+		if (cache != null) return cache.call(methods.handler(id), invocation.optJSONObject("args"));
+		return methods.handler(id).handleCall(invocation.optJSONObject("args"));
+	}
+
+	/**
+	 * Calls the streaming method an invocation names, which writes its result to stream.  Returns
+	 * the value of the reply that ends the stream.
+	 */
+	private JSONObject _callStream(JSONObject invocation, RPCStreamWriter stream) throws Exception {
+		RPCMethodTable methods = mMethods;
+		methods.handler(_methodId(methods, invocation)).handleStreamingCall(invocation.optJSONObject("args"), stream);
+		return new JSONObject().put("chunks", stream.chunks());
+	}
+
+	/**
+	 * Returns the id in methods of the method an invocation names, by mid or by app and method.
+	 */
+	private int _methodId(RPCMethodTable methods, JSONObject invocation) throws JSONException, IOException {
+		int mid = invocation.optInt("mid", -1);
+		int id = mid >= 0 ? mid : methods.id(invocation.getString("app"), invocation.getString("method"));
+		if (methods.handler(id) == null) {
+			String name = mid >= 0 ? "id " + mid : invocation.getString("app") + "." + invocation.getString("method");
+			throw new IOException("No method " + name + " registered");
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the writer for a streaming invocation's result, or null if invocation isn't one.
+	 * @param credit The stream's initial credit, or -1 for the window the caller asked for
+	 */
+	private RPCStreamWriter _streamWriter(TCPMessageHandler tcpMsgHandler, JSONObject invocation, RPCCallContext context, int credit) {
+		if (!invocation.optString("type").equals("invoke") || !invocation.has("stream")) return null;
+		if (credit < 0) credit = Math.max(1, invocation.optInt("stream", 1));
+		return new RPCStreamWriter(tcpMsgHandler, invocation.optInt("id", -1), context, credit);
+	}
+
+	/**
+	 * Performs the calls in a batch, returning an array of their results, each {"type":"OK","value":...}
+	 * or {"type":"ERROR","message":...}, in the order of the calls.
+	 * <p>
+	 * Unless the batch is sequential, helpers are handed to the call executor, and they and this thread
+	 * take calls from the batch until there are none left.  So a batch gets as many threads as are free
+	 * (up to one per call), and it never waits for a helper the executor hasn't started: this thread
+	 * performs any calls the helpers don't get to.
+	 */
+	private JSONArray _callBatch(final JSONArray calls, boolean sequential, final RPCCallContext batch) throws JSONException {
+		final int n = calls.length();
+		final JSONObject[] results = new JSONObject[n];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(n);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while ((i = next.getAndIncrement()) < n) {
+					results[i] = _batchResult(calls.optJSONObject(i), batch);
+					done.countDown();
+				}
+			}
+		};
+		if (!sequential) {
+			for (int helpers = 1; helpers < n; helpers++) {
+				if (!mCalls.execute(worker)) break;
+			}
+		}
+		worker.run();
+		// wait for the helpers still finishing calls they took
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		JSONArray array = new JSONArray();
+		for (JSONObject result : results) array.put(result);
+		return array;
+	}
+
+	/**
+	 * Performs one call of a batch, unless the batch has been cancelled, or the call's method or
+	 * service is at its admission limit.
+	 */
+	private JSONObject _batchResult(JSONObject call, RPCCallContext batch) {
+		RPCCallContext context = new RPCCallContext(batch);
+		context.enter();
+		try {
+			try {
+				if (call == null) throw new IOException("Batch element is not an invocation");
+				String cancelled = context.cancelReason();
+				if (cancelled != null) {
+					mDropped.incrementAndGet();
+					throw new IOException(cancelled);
+				}
+				if (!context.admit(_admission(call))) {
+					return new JSONObject().put("type", "ERROR").put("message", OVERLOADED).put("overloaded", true);
+				}
+				JSONObject value;
+				context.start();
+				try {
+					value = _call(call);
+				} finally {
+					context.release(true);
+				}
+				if (!context.replyAttachments().isEmpty()) throw new IOException("A batched call can't reply with attachments");
+				JSONObject result = new JSONObject().put("type", "OK");
+				if (value != null) result.put("value", value);
+				return result;
+			} catch (Exception e) {
+				return new JSONObject().put("type", "ERROR").put("message", e.toString());
+			}
+		} catch (JSONException e) {
+			// can't happen: the keys are non-null
+			throw new IllegalStateException(e);
+		} finally {
+			context.exit();
+		}
+	}
+
+	/**
+	 * Returns the deadline of an invocation that tells how long its caller will wait (see RPCCallMessage.budget()),
+	 * or 0 if it doesn't.
+	 */
+	private static long _deadline(JSONObject invocation) {
+		int budget = invocation.optInt("budget", 0);
+		return budget > 0 ? System.currentTimeMillis() + budget : 0;
+	}
+
+	/**
+	 * Returns the admission limiters an invocation must pass: those of the method it names, if any.
+	 * (A batch has none of its own; each of its calls is admitted as it's performed.)
+	 */
+	private RPCLimiter[] _admission(JSONObject invocation) {
+		RPCMethodTable methods = mMethods;
+		int mid = invocation.optInt("mid", -1);
+		if (mid >= 0) return methods.admission(mid);
+		if (!invocation.has("app") || !invocation.has("method")) return RPCLimiter.NONE;
+		return methods.admission(methods.id(invocation.optString("app"), invocation.optString("method")));
+	}
+
+	/**
+	 * Builds the reply to an invocation refused for lack of capacity, or returns null if the invocation
+	 * has no usable id.
+	 */
+	private RPCMessage _overloadedReply(JSONObject invocation) {
+		try {
+			return new RPCErrorResponseMessage(invocation.getInt("id"), OVERLOADED, null).overloaded();
+		} catch (JSONException e) {
+			Log.w(TAG, "Dropping unusable invocation: " + invocation);
+			return null;
+		}
+	}
+
+	private void _reply(TCPMessageHandler tcpMsgHandler, RPCMessage reply) {
+		if (reply == null) return;
+		try {
+			reply.send(tcpMsgHandler);
+		} catch (IOException e) {
+			// the connection is gone; its thread will notice
+			Log.d(TAG, "Couldn't send reply: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends a reply already turned into frames (see RPCMessage.frames()).
+	 */
+	private void _reply(TCPMessageHandler tcpMsgHandler, List<byte[]> frames) {
+		if (frames.isEmpty()) return;
+		try {
+			tcpMsgHandler.sendMessages(frames);
+		} catch (IOException e) {
+			// the connection is gone; its thread will notice
+			Log.d(TAG, "Couldn't send reply: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -127,7 +526,31 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		String serverIP = IPFinder.localIP();
 		ConfigManager config = NetBase.theNetBase().config();
 		localPort = config.getAsInt("rpc.server.port", 0);
-		mServerSocket = new ServerSocket();
+		mPersistenceTimeout = config.getAsInt("rpc.persistence.timeout", 30000, 0);
+		mMaxInFlight = config.getAsInt("rpc.server.maxinflight", 32, 1);
+		mMaxAttachments = config.getAsInt("rpc.attachments.max", 1024, 0);
+		boolean virtual = config.getProperty("rpc.server.threads", "pool").trim().equals("virtual");
+		mConnections = new RPCServiceExecutor("RPCService connections", virtual,
+				config.getAsInt("rpc.server.connections.max", 256, 1),
+				config.getAsInt("rpc.server.connections.queue", 256, 0),
+				config.getProperty("rpc.server.connections.full", "refuse").trim().equals("wait"));
+		mCalls = new RPCServiceExecutor("RPCService calls", virtual,
+				config.getAsInt("rpc.server.calls.max", 64, 1),
+				config.getAsInt("rpc.server.calls.queue", 1024, 0),
+				false);
+		mRunCallsWhenFull = config.getProperty("rpc.server.calls.full", "run").trim().equals("run");
+		RPCAdmissionPolicy admission = new RPCAdmissionPolicy()
+				.setMaxConcurrency(config.getAsInt("rpc.server.admission.limit", 0, 0))
+				.setMaxQueued(config.getAsInt("rpc.server.admission.queue", 0, 0))
+				.setTargetLatency(config.getAsInt("rpc.server.admission.latency", 0, 0));
+		mDefaultAdmission = admission.isUnlimited() ? null : admission;
+		int replayEntries = config.getAsInt("rpc.server.replay.entries", 10000, 0);
+		mReplay = replayEntries == 0 ? null : new RPCReplayCache(config.getAsInt("rpc.server.replay.ttl", 60000, 1), replayEntries,
+				config.getAsInt("rpc.server.replay.maxbytes", 16777216, 0));
+		// a channel's socket, so the connections it accepts have channels, and TCPMessageHandler.sendFile()
+		// can send file data on them without copying it through the heap
+		mServerSocket = ServerSocketChannel.open().socket();
+		SocketOptionProfile.get(loadablename()).applyBeforeAccept(mServerSocket);
 		mServerSocket.bind(new InetSocketAddress(serverIP, localPort));
 		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 
@@ -153,13 +576,10 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 			Socket sock = null;
 			try {
 				sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
-				// should really spawn a thread here, but the code is already complicated enough that we don't bother
-				Thread sockThread = new Thread(new SocketThread(sock));
-
-				sockThread.start();
-
-
-
+				if ( !mConnections.execute(new SocketThread(sock)) ) {
+					Log.w(TAG, "Refusing RPC connection from " + sock.getInetAddress() + ": too many connections");
+					sock.close();
+				}
 			} catch (SocketTimeoutException e) {
 				// this is normal.  Just loop back and see if we're terminating.
 			} catch (IOException e) {
@@ -169,9 +589,18 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		}
 	}
 
+	@Override
+	public void shutdown() {
+		mConnections.shutdown();
+		mCalls.shutdown();
+		super.shutdown();
+	}
+
 	/**
 	 * Services and applications with RPC callable methods register them with the RPC service using this routine.
 	 * Those methods are then invoked as callbacks when an remote RPC request for them arrives.
+	 * Each service and method name pair is also given an id, which callers can learn when they connect
+	 * and then use in place of the names (see RPCMethodTable).
 	 * @param serviceName  The name of the service.
 	 * @param methodName  The external, well-known name of the service's method to call
 	 * @param method The descriptor allowing invocation of the Java method implementing the call
@@ -179,8 +608,49 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 */
 	@Override
 	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
-		Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<String, String>(serviceName, methodName);
-		callbacks.put(entry, method);
+		_register(serviceName, methodName, method, null);
+	}
+
+	/**
+	 * Registers an idempotent method, whose results are cached as cachePolicy says (see RPCCachePolicy).
+	 * Repeated calls with the same arguments are then answered from the cache, without calling the method.
+	 * Registering the method again replaces its cache, empty.
+	 * @param cachePolicy How to cache the method's results, or null not to
+	 * @throws IllegalArgumentException If method is a streaming method, whose results can't be cached
+	 */
+	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method, RPCCachePolicy cachePolicy) throws Exception {
+		if (cachePolicy != null && method.isStreaming()) throw new IllegalArgumentException("Can't cache the results of streaming method " + serviceName + "." + methodName);
+		_register(serviceName, methodName, method, cachePolicy == null ? null : new RPCResponseCache(cachePolicy));
+	}
+
+	/**
+	 * Binds a method in the table.  A newly registered method is given the default admission policy
+	 * (rpc.server.admission.*); a method registered again keeps whatever policy it has.
+	 */
+	private void _register(String serviceName, String methodName, RPCCallableMethod method, RPCResponseCache cache) {
+		boolean isNew = mMethods.id(serviceName, methodName) < 0;
+		mMethods = mMethods.with(serviceName, methodName, method, cache);
+		if (isNew && mDefaultAdmission != null) mMethods = mMethods.withLimiter(mMethods.id(serviceName, methodName), new RPCLimiter(mDefaultAdmission));
+	}
+
+	/**
+	 * Limits how many calls of a method, or of all the methods of a service, are admitted at once (see
+	 * RPCAdmissionPolicy).  A call must pass both its service's limit and its method's.  Calls beyond the
+	 * limit are refused at once, and their callers get an RPCOverloadedException.  Setting a policy
+	 * replaces any earlier one, and starts its counts afresh.
+	 * @param methodName The method, which must be registered, or null for the whole service
+	 * @param policy The policy, or null for no limit
+	 * @throws IllegalArgumentException If methodName isn't registered, or the policy is adaptive but has no maximum
+	 */
+	public synchronized void setAdmissionPolicy(String serviceName, String methodName, RPCAdmissionPolicy policy) {
+		RPCLimiter limiter = policy == null || policy.isUnlimited() ? null : new RPCLimiter(policy);
+		if (methodName == null) {
+			mMethods = mMethods.withServiceLimiter(serviceName, limiter);
+			return;
+		}
+		int id = mMethods.id(serviceName, methodName);
+		if (id < 0) throw new IllegalArgumentException("No method " + serviceName + "." + methodName + " registered");
+		mMethods = mMethods.withLimiter(id, limiter);
 	}
 
 	/**
@@ -192,7 +662,7 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 * @return The existing registration for that method of that service, or null if no registration exists.
 	 */
 	public RPCCallableMethod getRegistrationFor( String serviceName, String methodName) {
-		return callbacks.get(new AbstractMap.SimpleEntry<String, String>(serviceName, methodName));
+		return mMethods.handler(serviceName, methodName);
 	}
 
 	/**
@@ -209,6 +679,19 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		StringBuilder sb = new StringBuilder();
 		sb.append("\nListening on: ");
 		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
+		sb.append("\n").append(mConnections);
+		sb.append("\n").append(mCalls).append(mRunCallsWhenFull ? " (full: run on the connection's thread)" : " (full: reply Server overloaded)");
+		sb.append("\nReplay cache: ").append(mReplay == null ? "off" : mReplay.toString());
+		sb.append("\nCalls dropped after their caller's deadline or cancellation: ").append(mDropped.get());
+		RPCMethodTable methods = mMethods;
+		for (int id = 0; id < methods.size(); id++) {
+			if (methods.cache(id) != null) sb.append("\nCache of ").append(methods.service(id)).append(".").append(methods.method(id)).append(": ").append(methods.cache(id));
+			if (methods.limiter(id) != null) sb.append("\nAdmission to ").append(methods.service(id)).append(".").append(methods.method(id)).append(": ").append(methods.limiter(id));
+		}
+		for (String service : methods.serviceLimiters().keySet()) {
+			sb.append("\nAdmission to ").append(service).append(": ").append(methods.serviceLimiters().get(service));
+		}
+		sb.append("\nTraffic: ").append(TCPMessageHandlerStats.forService(loadablename()));
 		sb.append("\n");
 		return sb.toString();
 	}
@@ -0,0 +1,189 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs RPCService's tasks (connections, or the calls made on them) with bounded resources.
+ * <p>
+ * At most max tasks run at once, and at most queue more are admitted to wait for a turn.  When
+ * that many are already admitted, execute() either refuses the task or, if the executor was
+ * created to wait, blocks until there's room.
+ * <p>
+ * Tasks run either on a pool of up to max platform threads, or each on its own virtual thread.
+ * Virtual threads are used only on Java 24 and later (see _virtualThreadFactory()).  They're found
+ * by reflection, so this code still builds and runs on older releases, where asking for them
+ * gets the pool instead.  Virtual threads make blocking cheap, so max can be much larger with them.
+ */
+class RPCServiceExecutor {
+	private static final String TAG="RPCServiceExecutor";
+
+	private final String mName;
+	private final int mMax;
+	private final int mQueue;
+	private final boolean mWaitWhenFull;
+	private final Semaphore mAdmitted;
+	private final Semaphore mRunning;             // virtual threads only
+	private final ThreadFactory mVirtualThreads;  // null when using the pool
+	private final ThreadPoolExecutor mPool;       // null when using virtual threads
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicLong mCompleted = new AtomicLong();
+	private final AtomicLong mRefused = new AtomicLong();
+	private volatile boolean mShutdown = false;
+
+	/**
+	 * @param name Names the threads, and the executor in toString()
+	 * @param virtual True to run tasks on virtual threads, if the JVM has them
+	 * @param max The most tasks that may run at once
+	 * @param queue The most tasks that may wait to run
+	 * @param waitWhenFull True if execute() should wait for room, false if it should refuse the task
+	 */
+	RPCServiceExecutor(String name, boolean virtual, int max, int queue, boolean waitWhenFull) {
+		mName = name;
+		mMax = max;
+		mQueue = queue;
+		mWaitWhenFull = waitWhenFull;
+		mAdmitted = new Semaphore(max + queue);
+		mVirtualThreads = virtual ? _virtualThreadFactory(name) : null;
+		if ( mVirtualThreads != null ) {
+			mRunning = new Semaphore(max);
+			mPool = null;
+		} else {
+			mRunning = null;
+			// admission bounds the queue, so the pool's own queue never fills
+			mPool = new ThreadPoolExecutor(max, max, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, mName + " " + mCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			mPool.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * Runs task when there's a thread for it.
+	 * @return False if the task was refused, because the executor is full (and isn't waiting for room)
+	 *         or has been shut down.
+	 */
+	boolean execute(final Runnable task) {
+		if ( !_admit() ) {
+			mRefused.incrementAndGet();
+			return false;
+		}
+		Runnable wrapped = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if ( mRunning != null ) mRunning.acquireUninterruptibly();
+					mActive.incrementAndGet();
+					try {
+						task.run();
+					} finally {
+						mActive.decrementAndGet();
+						if ( mRunning != null ) mRunning.release();
+					}
+				} finally {
+					mCompleted.incrementAndGet();
+					mAdmitted.release();
+				}
+			}
+		};
+		if ( mPool == null ) {
+			mVirtualThreads.newThread(wrapped).start();
+			return true;
+		}
+		try {
+			mPool.execute(wrapped);
+		} catch (RejectedExecutionException e) {
+			// shut down after the task was admitted
+			mAdmitted.release();
+			mRefused.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Refuses new tasks.  Tasks already admitted still run.
+	 */
+	void shutdown() {
+		mShutdown = true;
+		if ( mPool != null ) mPool.shutdown();
+	}
+
+	/**
+	 * Returns true if tasks run on virtual threads.
+	 */
+	boolean isVirtual() {
+		return mVirtualThreads != null;
+	}
+
+	/**
+	 * The configuration, followed by the current load and cumulative counts.
+	 */
+	@Override
+	public String toString() {
+		int admitted = mMax + mQueue - mAdmitted.availablePermits();
+		int active = mActive.get();
+		return String.format("%s: %s, max %d running + %d queued, when full %s; %d running, %d queued, %d completed, %d refused",
+				mName, isVirtual() ? "virtual threads" : "thread pool", mMax, mQueue, mWaitWhenFull ? "wait" : "refuse",
+				active, Math.max(0, admitted - active), mCompleted.get(), mRefused.get());
+	}
+
+	private boolean _admit() {
+		if ( mShutdown ) return false;
+		if ( !mWaitWhenFull ) return mAdmitted.tryAcquire();
+		try {
+			// wake up now and then to notice shutdown
+			while ( !mAdmitted.tryAcquire(500, TimeUnit.MILLISECONDS) ) {
+				if ( mShutdown ) return false;
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a factory for virtual threads, or null if this JVM doesn't have them.  Before Java 24, a virtual
+	 * thread that blocks while holding a monitor pins its carrier thread, and TCPMessageHandler does its
+	 * socket I/O holding monitors, so a few thousand idle connections would pin every carrier.  We treat
+	 * virtual threads as unavailable on those releases.
+	 */
+	private static ThreadFactory _virtualThreadFactory(String name) {
+		int release = 0;
+		try {
+			String version = System.getProperty("java.specification.version", "0");
+			release = Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+		} catch (NumberFormatException e) {
+		}
+		if ( release < 24 ) {
+			Log.w(TAG, "Virtual threads need Java 24 or later (this is " + release + "); " + name + " will use a thread pool");
+			return null;
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method setName = builderClass.getMethod("name", String.class, long.class);
+			builder = setName.invoke(builder, name + " ", 1L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			Log.w(TAG, "Virtual threads aren't available in this JVM; " + name + " will use a thread pool");
+			return null;
+		}
+	}
+}
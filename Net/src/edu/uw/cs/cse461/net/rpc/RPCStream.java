@@ -0,0 +1,164 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.JSONObject;
+
+/**
+ * The result of a streaming RPC call (see RPCCall.invokeStream()): the chunks the remote method
+ * writes, in order, as they arrive.
+ * <p>
+ * At most window chunks are ever buffered here.  The server may send only as many chunks as we've
+ * granted it credit for; we grant more as chunks are consumed, a half window at a time.  So a
+ * slow consumer slows the server down, rather than running out of memory.
+ * <p>
+ * read() throws IOException; the Iterator methods throw UncheckedIOException instead, so a stream
+ * can be consumed with a for loop over iterable():
+ * <pre>
+ *   try ( RPCStream stream = RPCCall.invokeStream(ip, port, "svc", "method", args, timeout) ) {
+ *     for ( JSONObject chunk : stream.iterable() ) ...
+ *   }
+ * </pre>
+ * Closing a stream before its end cancels the call.
+ */
+public class RPCStream implements Iterator<JSONObject>, Closeable {
+	private final RPCCallerSocket mSock;
+	private final int mCallId;
+	private final int mWindow;
+	private final int mTimeout;
+	private final ArrayDeque<JSONObject> mChunks = new ArrayDeque<JSONObject>();
+	private boolean mEnded = false;
+	private IOException mFailure = null;
+	private int mConsumed = 0;          // chunks consumed since credit was last granted
+	private JSONObject mNext = null;    // read by hasNext(), not yet returned by next()
+
+	/**
+	 * @param window The most chunks the server may send before we grant more credit
+	 * @param timeout The longest, in msec, to wait for any one chunk
+	 */
+	RPCStream(RPCCallerSocket sock, int callid, int window, int timeout) {
+		mSock = sock;
+		mCallId = callid;
+		mWindow = window;
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Returns the next chunk, waiting for it to arrive if need be, or null at the end of the stream.
+	 * @throws SocketTimeoutException If no chunk arrives within the timeout
+	 * @throws IOException If the remote method failed, or the connection did
+	 */
+	public JSONObject read() throws IOException {
+		if ( mNext != null ) {
+			JSONObject chunk = mNext;
+			mNext = null;
+			return chunk;
+		}
+		JSONObject chunk;
+		synchronized(this) {
+			long deadline = System.currentTimeMillis() + mTimeout;
+			while ( mChunks.isEmpty() && !mEnded && mFailure == null ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) throw new SocketTimeoutException("No stream chunk within " + mTimeout + " msec");
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for stream chunk");
+				}
+			}
+			chunk = mChunks.poll();
+			if ( chunk == null ) {
+				if ( mFailure != null ) throw mFailure;
+				return null;
+			}
+			if ( ++mConsumed < Math.max(1, mWindow / 2) || mEnded ) return chunk;
+		}
+		_grant();
+		return chunk;
+	}
+
+	/**
+	 * Returns this stream as an Iterable, for use in a for loop.  It can be iterated only once.
+	 */
+	public Iterable<JSONObject> iterable() {
+		return () -> this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if ( mNext != null ) return true;
+		try {
+			mNext = read();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return mNext != null;
+	}
+
+	@Override
+	public JSONObject next() {
+		if ( !hasNext() ) throw new NoSuchElementException();
+		JSONObject chunk = mNext;
+		mNext = null;
+		return chunk;
+	}
+
+	/**
+	 * Stops the stream.  If the remote method hasn't finished, it's cancelled.  Chunks already
+	 * received are discarded.
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			mChunks.clear();
+			if ( mEnded || mFailure != null ) return;
+			mFailure = new IOException("Stream closed");
+		}
+		mSock.cancelStream(mCallId);
+	}
+
+	//------------------------------------------------------------------------
+	// Called by the connection's reader thread
+	//------------------------------------------------------------------------
+
+	synchronized void chunk(JSONObject chunk) {
+		if ( mEnded || mFailure != null ) return;
+		mChunks.add(chunk);
+		notifyAll();
+	}
+
+	synchronized void end() {
+		mEnded = true;
+		notifyAll();
+	}
+
+	synchronized void fail(IOException e) {
+		if ( mFailure == null ) mFailure = e;
+		notifyAll();
+	}
+
+	/**
+	 * Grants the server credit for the chunks consumed since the last grant.
+	 */
+	private void _grant() throws IOException {
+		int credit;
+		synchronized(this) {
+			credit = mConsumed;
+			mConsumed = 0;
+		}
+		try {
+			mSock.grantCredit(mCallId, credit);
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+	}
+}
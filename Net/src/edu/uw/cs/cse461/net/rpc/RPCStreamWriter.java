@@ -0,0 +1,104 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+
+/**
+ * What a streaming RPC method (see RPCCallableMethod.StreamHandler) writes its result to, one chunk
+ * at a time.  Each chunk is sent to the caller as soon as it's written, so the method needs only
+ * as much memory as a chunk, however long the result.
+ * <p>
+ * Flow control is by credit: the caller says how many chunks it's willing to buffer, and grants more
+ * as it consumes them.  write() waits while the caller has no credit left, so a method can't run
+ * ahead of a slow caller.  It fails if the caller cancels the call, the connection is lost, or the
+ * call's deadline passes while it's waiting, which is how the method learns to stop.
+ */
+public class RPCStreamWriter {
+	private final TCPMessageHandler mTCPMsgHandler;
+	private final int mCallId;
+	private final RPCCallContext mContext;
+	private int mCredit;
+	private int mChunks = 0;
+	private String mCancelled = null;
+
+	/**
+	 * @param context The call's context, whose deadline bounds the wait for credit
+	 * @param credit The number of chunks that may be sent before the caller grants more
+	 */
+	RPCStreamWriter(TCPMessageHandler tcpMsgHandler, int callid, RPCCallContext context, int credit) {
+		mTCPMsgHandler = tcpMsgHandler;
+		mCallId = callid;
+		mContext = context;
+		mCredit = credit;
+	}
+
+	/**
+	 * Sends chunk to the caller, first waiting until it has credit for it.
+	 * @throws IOException If the call has been cancelled, its deadline passes while waiting for credit,
+	 *         or the chunk can't be sent
+	 * @throws InterruptedException If interrupted while waiting for credit
+	 */
+	public void write(JSONObject chunk) throws IOException, InterruptedException {
+		if ( chunk == null ) throw new IllegalArgumentException("A stream chunk can't be null");
+		synchronized(this) {
+			while ( mCredit <= 0 && mCancelled == null ) {
+				// a caller that stops granting credit, and never cancels, mustn't hold this thread forever
+				long remaining = mContext.remainingTime();
+				if ( remaining == 0 ) throw new IOException("Deadline exceeded");
+				wait(remaining);
+			}
+			if ( mCancelled != null ) throw new IOException("Stream cancelled: " + mCancelled);
+			mCredit--;
+			mChunks++;
+		}
+		try {
+			mTCPMsgHandler.sendMessage(new RPCChunkResponseMessage(mCallId, chunk).marshall());
+		} catch (JSONException e) {
+			throw new IOException("Can't build stream chunk", e);
+		} catch (IOException e) {
+			cancel("connection lost (" + e.getMessage() + ")");
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns true once the caller has cancelled the call, or the connection has been lost.
+	 */
+	public synchronized boolean isCancelled() {
+		return mCancelled != null;
+	}
+
+	/**
+	 * Returns the number of chunks written so far.
+	 */
+	public synchronized int chunks() {
+		return mChunks;
+	}
+
+	int callid() {
+		return mCallId;
+	}
+
+	/**
+	 * Called when the caller grants more credit.
+	 */
+	synchronized void grant(int credit) {
+		if ( credit <= 0 ) return;
+		// saturate rather than overflow: an unbounded stream starts at Integer.MAX_VALUE
+		mCredit = (int)Math.min(Integer.MAX_VALUE, (long)mCredit + credit);
+		notifyAll();
+	}
+
+	/**
+	 * Makes write() fail from now on, waking a writer waiting for credit.
+	 */
+	synchronized void cancel(String why) {
+		if ( mCancelled == null ) mCancelled = why;
+		notifyAll();
+	}
+}
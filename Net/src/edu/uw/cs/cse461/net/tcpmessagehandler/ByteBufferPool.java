@@ -0,0 +1,113 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable ByteBuffers, so that code reading a steady stream of messages
+ * doesn't allocate (and then garbage collect) a new buffer for each one.
+ * <p>
+ * Buffers come in power-of-two size classes.  lease() hands out a buffer from the smallest
+ * class that can hold the requested number of bytes, allocating one only if that class is
+ * empty; release() puts it back.  A buffer must not be used after it has been released.
+ * Each class holds at most maxPerClass idle buffers -- extras are left to the garbage collector.
+ * <p>
+ * Pools are thread safe.  Buffers larger than the largest size class are never pooled.
+ */
+public class ByteBufferPool {
+	private static final int MIN_CLASS_SHIFT = 8;     // smallest pooled buffer is 256 bytes
+	private static final int MAX_CLASS_SHIFT = 22;    // largest is 4MB (covers the default maxmsglength)
+
+	private static ByteBufferPool mHeapPool;
+	private static ByteBufferPool mDirectPool;
+
+	private final boolean mDirect;
+	private final int mMaxPerClass;
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> mClasses;
+	private final AtomicInteger[] mClassSizes;
+
+	/**
+	 * Returns a process-wide pool of heap buffers.
+	 */
+	public static synchronized ByteBufferPool heapPool() {
+		if ( mHeapPool == null ) mHeapPool = new ByteBufferPool(false, 64);
+		return mHeapPool;
+	}
+
+	/**
+	 * Returns a process-wide pool of direct buffers.  Direct buffers are expensive to create,
+	 * but can be passed to channel I/O without an extra copy.
+	 */
+	public static synchronized ByteBufferPool directPool() {
+		if ( mDirectPool == null ) mDirectPool = new ByteBufferPool(true, 64);
+		return mDirectPool;
+	}
+
+	/**
+	 * Constructor.
+	 * @param direct True to allocate direct buffers, false for heap buffers
+	 * @param maxPerClass Maximum number of idle buffers kept in each size class
+	 */
+	public ByteBufferPool(boolean direct, int maxPerClass) {
+		mDirect = direct;
+		mMaxPerClass = maxPerClass;
+		int nClasses = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+		mClasses = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(nClasses);
+		mClassSizes = new AtomicInteger[nClasses];
+		for ( int i=0; i<nClasses; i++ ) {
+			mClasses.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			mClassSizes[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns a cleared buffer with room for at least size bytes.  Its limit is set to size.
+	 */
+	public ByteBuffer lease(int size) {
+		int c = _classFor(size);
+		ByteBuffer buf = null;
+		if ( c >= 0 ) {
+			buf = mClasses.get(c).poll();
+			if ( buf != null ) mClassSizes[c].decrementAndGet();
+			else buf = _allocate(1 << (c + MIN_CLASS_SHIFT));
+		} else {
+			buf = _allocate(size);
+		}
+		buf.clear();
+		buf.limit(size);
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer obtained from lease() to the pool.
+	 */
+	public void release(ByteBuffer buf) {
+		if ( buf == null || buf.isDirect() != mDirect ) return;
+		int capacity = buf.capacity();
+		int c = _classFor(capacity);
+		// only buffers this pool could have allocated are taken back
+		if ( c < 0 || capacity != 1 << (c + MIN_CLASS_SHIFT) ) return;
+		if ( mClassSizes[c].incrementAndGet() > mMaxPerClass ) {
+			mClassSizes[c].decrementAndGet();
+			return;
+		}
+		mClasses.get(c).offer(buf);
+	}
+
+	/**
+	 * Returns the index of the smallest size class holding size bytes, or -1 if there is none.
+	 */
+	private int _classFor(int size) {
+		int shift = MIN_CLASS_SHIFT;
+		while ( shift <= MAX_CLASS_SHIFT && (1 << shift) < size ) shift++;
+		if ( shift > MAX_CLASS_SHIFT ) return -1;
+		return shift - MIN_CLASS_SHIFT;
+	}
+
+	private ByteBuffer _allocate(int capacity) {
+		return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+}
@@ -0,0 +1,73 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The standard java.util.zip Deflate algorithm, at its fastest setting.
+ * (Messages are compressed on the critical path, so speed matters more than ratio.)
+ */
+public class DeflateCodec implements FrameCodec {
+	// the "nowrap" format may need an extra dummy byte after the input
+	private static final byte[] PAD = new byte[1];
+	// output is inflated into mOut, which is kept for the next message if it's no bigger than this
+	private static final int OUT_MAX = 64 * 1024;
+
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final Inflater mInflater = new Inflater(true);
+	private byte[] mOut = new byte[256];
+
+	@Override
+	public String name() {
+		return "deflate";
+	}
+
+	@Override
+	public byte id() {
+		return 1;
+	}
+
+	@Override
+	public int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		mDeflater.reset();
+		mDeflater.setInput(src, off, len);
+		mDeflater.finish();
+		int n = mDeflater.deflate(dst, dstOff, dst.length - dstOff);
+		return mDeflater.finished() ? n : -1;
+	}
+
+	@Override
+	public byte[] decompress(byte[] src, int off, int len, int maxLen) throws IOException {
+		mInflater.reset();
+		// inflated straight from src, and into a reused buffer, so the only allocation is the result
+		mInflater.setInput(src, off, len);
+		boolean padded = false;
+		byte[] out = mOut.length >= Math.min(maxLen, 4 * len) ? mOut : new byte[Math.min(maxLen, Math.max(64, 4 * len))];
+		int n = 0;
+		try {
+			while ( !mInflater.finished() ) {
+				// a reused out may be longer than maxLen
+				int room = Math.min(out.length, maxLen);
+				if ( n == room ) {
+					if ( room == maxLen ) throw new IOException("Decompressed message exceeds maximum length " + maxLen);
+					out = Arrays.copyOf(out, room = (int)Math.min(maxLen, 2L * out.length));
+				}
+				int k = mInflater.inflate(out, n, room - n);
+				if ( k == 0 && mInflater.needsInput() && !padded ) {
+					mInflater.setInput(PAD);
+					padded = true;
+					continue;
+				}
+				if ( k == 0 && (mInflater.needsInput() || mInflater.needsDictionary()) ) throw new IOException("Truncated compressed message");
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed message: " + e.getMessage());
+		}
+		if ( out.length <= OUT_MAX ) mOut = out;
+		return Arrays.copyOf(out, n);
+	}
+}
@@ -0,0 +1,38 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm usable for TCPMessageHandler frames.
+ * <p>
+ * Codecs are registered with FrameCompressor.registerCodec() by class, and each handler creates
+ * its own instances, so implementations may keep per-instance state (e.g., a Deflater) and need
+ * not be thread safe.  Implementations must have a public no-argument constructor.
+ */
+public interface FrameCodec {
+
+	/**
+	 * The name used to offer and select this codec during negotiation (e.g., "deflate").
+	 */
+	public String name();
+
+	/**
+	 * A small positive number, unique among registered codecs, that identifies this codec on the wire.
+	 */
+	public byte id();
+
+	/**
+	 * Compresses src[off..off+len) into dst, starting at dstOff.
+	 * @return The number of bytes written, or -1 if the compressed form doesn't fit in the
+	 *         remaining space in dst (meaning compression doesn't pay for this data).
+	 */
+	public int compress(byte[] src, int off, int len, byte[] dst, int dstOff);
+
+	/**
+	 * Decompresses src[off..off+len).
+	 * @param maxLen Largest acceptable decompressed size
+	 * @return The decompressed bytes
+	 * @throws IOException If the data is corrupt or decompresses to more than maxLen bytes
+	 */
+	public byte[] decompress(byte[] src, int off, int len, int maxLen) throws IOException;
+}
@@ -0,0 +1,267 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * Per-connection compression state for a message handler.
+ * <p>
+ * On the wire, a compressed message is an ordinary frame with the COMPRESSED_FLAG bit set in
+ * its length field.  Its payload is a one byte codec id followed by the codec's output.  Because
+ * the id travels with the data, a receiver can always decode compressed frames (so long as it
+ * knows the codec); negotiation (see negotiate()) only decides whether, and with what, a sender
+ * compresses.  Nothing is compressed until setCodec() is called.
+ * <p>
+ * Messages shorter than tcpmessagehandler.compression.threshold bytes are always sent raw,
+ * as is any message that doesn't get smaller.  In adaptive mode (tcpmessagehandler.compression.adaptive=1)
+ * the compressor also keeps track of how much it is saving: after each window of compressed
+ * messages it estimates the time saved on the wire (at tcpmessagehandler.compression.linkrate bytes/sec)
+ * and compares it with the CPU time spent compressing.  If compression isn't paying, it stops
+ * compressing for a while, then tries again, in case the data (or the link) has changed.
+ * <p>
+ * Thread safe.
+ */
+public class FrameCompressor {
+	/**
+	 * Set in the length field of a frame whose payload is compressed.
+	 */
+	public static final int COMPRESSED_FLAG = 0x40000000;
+
+	private static final int ADAPTIVE_WINDOW = 32;         // compressed messages per evaluation
+	private static final int ADAPTIVE_BACKOFF = 256;       // messages sent raw once compression stops paying
+
+	private static final LinkedHashMap<String, Class<? extends FrameCodec>> mCodecsByName = new LinkedHashMap<String, Class<? extends FrameCodec>>();
+	private static final HashMap<Byte, Class<? extends FrameCodec>> mCodecsById = new HashMap<Byte, Class<? extends FrameCodec>>();
+
+	static {
+		registerCodec(DeflateCodec.class);
+	}
+
+	private FrameCodec mSendCodec = null;
+	private final HashMap<Byte, FrameCodec> mReceiveCodecs = new HashMap<Byte, FrameCodec>();
+	private int mThreshold;
+	private boolean mAdaptive;
+	private final double mLinkRate;
+
+	// adaptive mode state
+	private long mWindowIn = 0;
+	private long mWindowOut = 0;
+	private long mWindowNanos = 0;
+	private int mWindowCount = 0;
+	private int mBackoffRemaining = 0;
+
+	// statistics
+	private long mCompressedCount = 0;
+	private long mRawCount = 0;
+	private long mBytesIn = 0;
+	private long mBytesOut = 0;
+	private int mBackoffCount = 0;
+
+	//--------------------------------------------------------------------------------------
+	// codec registry
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Makes a codec available to all handlers.  Codecs registered earlier are preferred
+	 * by negotiate() when a peer offers several.
+	 * @throws IllegalArgumentException If the codec can't be instantiated, or its id is already taken
+	 */
+	public static synchronized void registerCodec(Class<? extends FrameCodec> codecClass) {
+		FrameCodec codec = _instantiate(codecClass);
+		Class<? extends FrameCodec> existing = mCodecsById.get(codec.id());
+		if ( existing != null && existing != codecClass )
+			throw new IllegalArgumentException("Codec id " + codec.id() + " is already used by " + existing.getName());
+		mCodecsByName.put(codec.name(), codecClass);
+		mCodecsById.put(codec.id(), codecClass);
+	}
+
+	/**
+	 * Returns the names of the registered codecs, most preferred first.
+	 */
+	public static synchronized String[] supportedCodecs() {
+		return mCodecsByName.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Picks the codec to use given a peer's offer.
+	 * @param offered Codec names, separated by commas or white space, in the peer's order of preference
+	 * @return The first offered codec that is also registered here, or null if there is none
+	 */
+	public static synchronized String negotiate(String offered) {
+		if ( offered == null ) return null;
+		for ( String name : offered.split("[,\\s]+") ) {
+			if ( mCodecsByName.containsKey(name) ) return name;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the codecs a config file asks a side to offer (rpc.compression, for instance), dropping
+	 * any that aren't registered, as a comma separated string.  Returns null if that leaves none.
+	 */
+	public static String offerFromConfig(String key) {
+		String[] wanted = NetBase.theNetBase().config().getAsStringVec(key);
+		if ( wanted == null ) return null;
+		ArrayList<String> offer = new ArrayList<String>();
+		for ( String name : wanted ) {
+			if ( negotiate(name) != null ) offer.add(name);
+		}
+		if ( offer.isEmpty() ) return null;
+		StringBuilder sb = new StringBuilder();
+		for ( String name : offer ) {
+			if ( sb.length() > 0 ) sb.append(',');
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+
+	private static synchronized FrameCodec _newCodec(String name) {
+		Class<? extends FrameCodec> codecClass = mCodecsByName.get(name);
+		return codecClass == null ? null : _instantiate(codecClass);
+	}
+
+	private static synchronized FrameCodec _newCodec(byte id) {
+		Class<? extends FrameCodec> codecClass = mCodecsById.get(id);
+		return codecClass == null ? null : _instantiate(codecClass);
+	}
+
+	private static FrameCodec _instantiate(Class<? extends FrameCodec> codecClass) {
+		try {
+			return codecClass.newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Can't instantiate codec " + codecClass.getName() + ": " + e.getMessage());
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// per-connection state
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Constructor.  Takes the threshold and adaptive settings from the config file.  Compression is off.
+	 */
+	public FrameCompressor() {
+		ConfigManager config = NetBase.theNetBase().config();
+		mThreshold = config.getAsInt("tcpmessagehandler.compression.threshold", 1024, 0);
+		mAdaptive = config.getAsInt("tcpmessagehandler.compression.adaptive", 1) != 0;
+		mLinkRate = config.getAsInt("tcpmessagehandler.compression.linkrate", 12500000, 1);
+	}
+
+	/**
+	 * Selects the codec used for outgoing messages.
+	 * @param name A registered codec name, or null to stop compressing
+	 * @throws IOException If no codec of that name is registered
+	 */
+	public synchronized void setCodec(String name) throws IOException {
+		if ( name == null ) {
+			mSendCodec = null;
+			return;
+		}
+		FrameCodec codec = _newCodec(name);
+		if ( codec == null ) throw new IOException("Unknown compression codec '" + name + "'");
+		mSendCodec = codec;
+		mWindowIn = mWindowOut = mWindowNanos = mWindowCount = mBackoffRemaining = 0;
+	}
+
+	/**
+	 * Returns the name of the codec used for outgoing messages, or null if compression is off.
+	 */
+	public synchronized String codecName() {
+		return mSendCodec == null ? null : mSendCodec.name();
+	}
+
+	/**
+	 * Sets the length below which messages are sent uncompressed.
+	 */
+	public synchronized void setThreshold(int threshold) {
+		mThreshold = threshold;
+	}
+
+	/**
+	 * Enables or disables adaptive mode.
+	 */
+	public synchronized void setAdaptive(boolean adaptive) {
+		mAdaptive = adaptive;
+		mBackoffRemaining = 0;
+	}
+
+	/**
+	 * Compresses an outgoing message payload, if that's worthwhile.
+	 * @param dst Receives the compressed payload (codec id and data).  Must be at least len bytes long.
+	 * @return The length of the compressed payload in dst, or -1 if the message should be sent raw.
+	 */
+	synchronized int compress(byte[] src, int off, int len, byte[] dst) {
+		if ( mSendCodec == null ) return -1;
+		if ( len < mThreshold || mBackoffRemaining > 0 ) {
+			if ( mBackoffRemaining > 0 ) mBackoffRemaining--;
+			mRawCount++;
+			return -1;
+		}
+		long start = System.nanoTime();
+		dst[0] = mSendCodec.id();
+		int n = mSendCodec.compress(src, off, len, dst, 1);
+		if ( n >= 0 ) n++;
+		// a codec that doesn't fit in len - 1 bytes gains nothing: the raw message is no longer
+		if ( n >= len ) n = -1;
+		if ( mAdaptive ) _evaluate(len, n < 0 ? len : n, System.nanoTime() - start);
+		if ( n < 0 ) {
+			mRawCount++;
+			return -1;
+		}
+		mCompressedCount++;
+		mBytesIn += len;
+		mBytesOut += n;
+		return n;
+	}
+
+	/**
+	 * Restores the payload of a frame received with COMPRESSED_FLAG set.
+	 * @param maxLen The largest acceptable decompressed length
+	 */
+	synchronized byte[] decompress(byte[] src, int off, int len, int maxLen) throws IOException {
+		if ( len < 1 ) throw new IOException("Compressed message has no codec id");
+		byte id = src[off];
+		FrameCodec codec = mReceiveCodecs.get(id);
+		if ( codec == null ) {
+			codec = _newCodec(id);
+			if ( codec == null ) throw new IOException("Received message compressed with unknown codec id " + id);
+			mReceiveCodecs.put(id, codec);
+		}
+		return codec.decompress(src, off + 1, len - 1, maxLen);
+	}
+
+	/**
+	 * Accumulates the cost and benefit of compressing one message, and at the end of each window
+	 * decides whether compression is paying for itself.
+	 */
+	private void _evaluate(int in, int out, long nanos) {
+		mWindowIn += in;
+		mWindowOut += out;
+		mWindowNanos += nanos;
+		if ( ++mWindowCount < ADAPTIVE_WINDOW ) return;
+		double savedNanos = (mWindowIn - mWindowOut) * 1e9 / mLinkRate;
+		if ( savedNanos <= mWindowNanos ) {
+			mBackoffRemaining = ADAPTIVE_BACKOFF;
+			mBackoffCount++;
+		}
+		mWindowIn = mWindowOut = mWindowNanos = mWindowCount = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("codec=").append(mSendCodec == null ? "none" : mSendCodec.name())
+		  .append(" threshold=").append(mThreshold)
+		  .append(" adaptive=").append(mAdaptive)
+		  .append(" compressed=").append(mCompressedCount)
+		  .append(" raw=").append(mRawCount);
+		if ( mBytesIn > 0 ) sb.append(String.format(" ratio=%.2f", (double)mBytesOut / mBytesIn));
+		if ( mAdaptive ) sb.append(" backoffs=").append(mBackoffCount);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,90 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental decoder for the length-prefixed wire format used by TCPMessageHandler.
+ * <p>
+ * Bytes are handed to decode() in whatever pieces the network happens to deliver them.
+ * The decoder remembers how far it got through the current frame, so a header or
+ * payload split across any number of reads is reassembled correctly.  This is what lets
+ * a non-blocking channel be serviced by a Selector: the event loop reads whatever is
+ * available and never has to wait for the rest of a frame.
+ */
+class FrameDecoder {
+	private static final int HEADER_SIZE = 4;
+
+	private enum State { HEADER, PAYLOAD }
+
+	private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private State mState = State.HEADER;
+	private byte[] mPayload;
+	private int mPayloadPos;
+	private boolean mCompressed;
+	private int mMaxMsgLen;
+	private final FrameCompressor mCompressor;
+	private final TCPMessageHandlerStats mStats;
+
+	FrameDecoder(int maxMsgLen, FrameCompressor compressor, TCPMessageHandlerStats stats) {
+		mMaxMsgLen = maxMsgLen;
+		mCompressor = compressor;
+		mStats = stats;
+	}
+
+	void setMaxMsgLen(int maxMsgLen) {
+		mMaxMsgLen = maxMsgLen;
+	}
+
+	/**
+	 * Consumes bytes from in until either a frame is complete or in is exhausted.
+	 * @param in Buffer in read mode.  Its position is advanced past the bytes consumed.
+	 * @return The payload of the completed frame (decompressed, if it arrived compressed),
+	 *         or null if more bytes are needed.
+	 * @throws IOException If the header announces a length outside [0, maxMsgLen], or a
+	 *         compressed payload can't be decompressed.
+	 */
+	byte[] decode(ByteBuffer in) throws IOException {
+		while ( in.hasRemaining() ) {
+			if ( mState == State.HEADER ) {
+				while ( mHeader.hasRemaining() && in.hasRemaining() ) mHeader.put(in.get());
+				if ( mHeader.hasRemaining() ) return null;
+				mHeader.flip();
+				int header = mHeader.getInt();
+				mHeader.clear();
+				mCompressed = (header & FrameCompressor.COMPRESSED_FLAG) != 0;
+				int payloadLength = header & ~FrameCompressor.COMPRESSED_FLAG;
+				mStats.frameReceived(header & TCPMessageHandler.LENGTH_MASK);
+				if ( payloadLength < 0 || payloadLength > mMaxMsgLen ) {
+					mStats.oversized();
+					throw new IOException("The length of the payload is not within bounds");
+				}
+				mPayload = new byte[payloadLength];
+				mPayloadPos = 0;
+				mState = State.PAYLOAD;
+			}
+			int n = Math.min(in.remaining(), mPayload.length - mPayloadPos);
+			in.get(mPayload, mPayloadPos, n);
+			mPayloadPos += n;
+			// note that a zero length payload completes as soon as its header does
+			if ( mPayloadPos == mPayload.length ) return _finishFrame();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the decoder is between frames (no partial frame is buffered).
+	 */
+	boolean isIdle() {
+		return mState == State.HEADER && mHeader.position() == 0;
+	}
+
+	private byte[] _finishFrame() throws IOException {
+		byte[] frame = mPayload;
+		mPayload = null;
+		mState = State.HEADER;
+		if ( mCompressed ) return mCompressor.decompress(frame, 0, frame.length, mMaxMsgLen);
+		return frame;
+	}
+}
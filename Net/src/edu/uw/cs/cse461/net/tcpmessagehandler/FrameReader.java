@@ -0,0 +1,135 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered reader for the framed byte stream arriving on a socket.
+ * <p>
+ * Rather than issuing a read() for each header and each payload, it pulls as much as the socket
+ * has (up to the size of its buffer) in one read, and then serves subsequent header and payload
+ * requests from memory.  When a peer pipelines small messages a single read typically picks up
+ * many complete frames, plus the beginning of the next; the partial frame simply stays buffered
+ * until the rest of it arrives.  Requests for more bytes than the buffer holds are read straight
+ * into the destination once the buffered bytes have been used, so large payloads aren't copied twice.
+ * <p>
+ * A read timeout is a SocketTimeoutException only if it leaves the stream at a frame boundary: while
+ * readHeader() waits for the first byte of a header.  The caller can then simply read again.  A timeout
+ * anywhere else would leave part of a frame consumed, so it's thrown as a plain IOException, and the
+ * connection should be closed.
+ * <p>
+ * Time spent in socket reads, and read timeouts, are recorded in the handler's stats.
+ * <p>
+ * Not thread safe -- TCPMessageHandler serializes access.
+ */
+class FrameReader {
+	private final InputStream mIn;
+	private final byte[] mBuf;
+	private final TCPMessageHandlerStats mStats;
+	private int mPos = 0;     // next unread byte
+	private int mLimit = 0;   // one past the last valid byte
+
+	FrameReader(InputStream in, int bufferSize, TCPMessageHandlerStats stats) {
+		mIn = in;
+		mBuf = new byte[bufferSize];
+		mStats = stats;
+	}
+
+	/**
+	 * Reads the len-byte header of a frame into b.  A timeout before any of it has arrived is thrown
+	 * as a SocketTimeoutException, and leaves the stream as it was.
+	 */
+	void readHeader(byte[] b, int len) throws IOException {
+		if ( mPos == mLimit ) _fill(true);
+		readFully(b, 0, len);
+	}
+
+	/**
+	 * Reads exactly len bytes into b.
+	 */
+	void readFully(byte[] b, int off, int len) throws IOException {
+		int n = _drain(b, off, len);
+		off += n;
+		len -= n;
+		while ( len > 0 ) {
+			if ( len >= mBuf.length ) {
+				// big enough that buffering would just add a copy
+				n = _read(b, off, len, false);
+				if ( n < 0 ) throw new EOFException("Connection closed by peer");
+			} else {
+				_fill(false);
+				n = _drain(b, off, len);
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Reads exactly len bytes into dst, advancing its position.
+	 */
+	void readFully(ByteBuffer dst, int len) throws IOException {
+		if ( dst.hasArray() ) {
+			readFully(dst.array(), dst.arrayOffset() + dst.position(), len);
+			dst.position(dst.position() + len);
+			return;
+		}
+		while ( len > 0 ) {
+			if ( mPos == mLimit ) _fill(false);
+			int n = Math.min(len, mLimit - mPos);
+			dst.put(mBuf, mPos, n);
+			mPos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Reads and discards exactly len bytes.
+	 */
+	void skipFully(int len) throws IOException {
+		while ( len > 0 ) {
+			if ( mPos == mLimit ) _fill(false);
+			int n = Math.min(len, mLimit - mPos);
+			mPos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies up to len buffered bytes into b, returning the number copied.
+	 */
+	private int _drain(byte[] b, int off, int len) {
+		int n = Math.min(len, mLimit - mPos);
+		System.arraycopy(mBuf, mPos, b, off, n);
+		mPos += n;
+		return n;
+	}
+
+	/**
+	 * Refills the (empty) buffer with a single read of whatever the socket has available.
+	 * Blocks if nothing is.
+	 * @param atBoundary True if the stream is at a frame boundary, so a timeout may be thrown as such
+	 */
+	private void _fill(boolean atBoundary) throws IOException {
+		int n = _read(mBuf, 0, mBuf.length, atBoundary);
+		if ( n < 0 ) throw new EOFException("Connection closed by peer");
+		mPos = 0;
+		mLimit = n;
+	}
+
+	private int _read(byte[] b, int off, int len, boolean atBoundary) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mIn.read(b, off, len);
+		} catch (SocketTimeoutException e) {
+			mStats.timeout();
+			if ( atBoundary ) throw e;
+			throw new IOException("Read timed out partway through a frame", e);
+		} finally {
+			mStats.readTime(System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,808 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A TCPMessageHandler built on a non-blocking SocketChannel.  The wire format is identical
+ * to TCPMessageHandler's (including compressed messages, but not streamed ones), so either end
+ * of a connection can use either implementation.
+ * <p>
+ * There are two ways to use one of these:
+ * <ul>
+ * <li> Exactly like a TCPMessageHandler, through the blocking TCPMessageHandlerInterface
+ *      methods.  Waits (honoring setTimeout()) are done on a private Selector that is
+ *      created the first time one is needed.
+ * <li> By handing it to a TCPMessageHandlerEventLoop.  The loop's thread then reads and
+ *      decodes frames as they arrive and delivers them to a FrameListener, so a single
+ *      thread can field any number of connections.  Once attached, the blocking read
+ *      routines throw; the send routines remain usable from any thread, and anything
+ *      the socket can't take immediately is queued and written by the loop.
+ * </ul>
+ * The asynchronous routines use the second approach: the first call attaches the handler to
+ * TCPMessageHandlerEventLoop.sharedLoop(), whose thread then completes the futures.  No thread
+ * blocks waiting for data, so one thread can drive any number of connections.  From then on
+ * the blocking read routines throw, as for any attached handler.
+ */
+public class NIOTCPMessageHandler implements TCPMessageHandlerInterface {
+	private static final String TAG="NIOTCPMessageHandler";
+	private static final int HEADER_SIZE = 4;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int SCRATCH_MAX = 64 * 1024;       // larger messages get a scratch buffer of their own
+
+	private final SocketChannel mChannel;
+	private final FrameCompressor mCompressor = new FrameCompressor();
+	private final TCPMessageHandlerStats mStats;
+	private final FrameDecoder mDecoder;
+	private final ByteBuffer mReadBuffer;
+	private final LinkedList<ByteBuffer> mPendingWrites = new LinkedList<ByteBuffer>();
+	private final Object mWriteLock = new Object();
+
+	private int mMaxMsgLen;
+	private int mTimeout;
+	private Selector mBlockingSelector;
+	private byte[] mScratch = new byte[256];   // reused to decode Strings; guarded by mReadBuffer
+	private byte[] mInflated = null;           // decompressed payload awaiting collection; guarded by mReadBuffer
+	private byte[] mCompressBuf = new byte[0]; // reused to compress outgoing payloads; guarded by mCompressor
+
+	// set while attached to an event loop
+	private TCPMessageHandlerEventLoop mLoop;
+	private SelectionKey mKey;
+
+	// asynchronous routines.  mWriteCompletions is guarded by mWriteLock; the rest by mReadyFrames.
+	private volatile boolean mAsyncMode = false;
+	private final LinkedList<WriteCompletion> mWriteCompletions = new LinkedList<WriteCompletion>();
+	private final LinkedList<byte[]> mReadyFrames = new LinkedList<byte[]>();
+	private final LinkedList<CompletableFuture<byte[]>> mPendingReads = new LinkedList<CompletableFuture<byte[]>>();
+	private IOException mAsyncFailure = null;
+
+	/**
+	 * An asynchronous send waiting in mPendingWrites.  It is complete once mLast,
+	 * the last of its buffers to be queued, has been written.
+	 */
+	private static class WriteCompletion {
+		final ByteBuffer mLast;
+		final CompletableFuture<Void> mFuture;
+		WriteCompletion(ByteBuffer last, CompletableFuture<Void> future) {
+			mLast = last;
+			mFuture = future;
+		}
+	}
+
+	/**
+	 * Constructor, associating this handler with a connected channel.  The channel is put
+	 * into non-blocking mode.
+	 * @param channel
+	 * @throws IOException
+	 */
+	public NIOTCPMessageHandler(SocketChannel channel) throws IOException {
+		if ( channel == null ) throw new IOException("The given channel was null");
+		mChannel = channel;
+		mChannel.configureBlocking(false);
+		mTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 15000);
+		mMaxMsgLen = NetBase.theNetBase().config().getAsInt("tcpmessagehandler.maxmsglength", 2097148);
+		InetAddress peer = mChannel.socket().getInetAddress();
+		mStats = TCPMessageHandlerStats.forConnection(peer == null ? "unconnected" : peer.getHostAddress());
+		mDecoder = new FrameDecoder(mMaxMsgLen, mCompressor, mStats);
+		mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		mReadBuffer.flip();  // kept in read mode between calls
+		applySocketOptions("default");
+	}
+
+	/**
+	 * Returns the underlying channel.
+	 */
+	public SocketChannel channel() {
+		return mChannel;
+	}
+
+	/**
+	 * Closes the underlying channel, detaching from any event loop.  Outstanding
+	 * asynchronous operations fail.
+	 */
+	@Override
+	public void close() {
+		try {
+			if ( mKey != null ) mKey.cancel();
+			mChannel.close();
+			if ( mBlockingSelector != null ) mBlockingSelector.close();
+		} catch (Exception e) {
+			Log.w(TAG, "Exception on close: " + e.getMessage());
+		}
+		_failAsync(new EOFException("Connection closed"));
+	}
+
+	/**
+	 * Sets the time the blocking routines will wait for the channel to become ready.
+	 * (Channel reads ignore SO_TIMEOUT, so this value is enforced by the handler itself.)
+	 */
+	@Override
+	public int setTimeout(int timeout) throws SocketException {
+		int prevTimeout = mTimeout;
+		mTimeout = timeout;
+		return prevTimeout;
+	}
+
+	/**
+	 * The constructor applies the default profile.  Adaptive buffer sizing isn't done for
+	 * channel handlers; an adaptive profile leaves the buffers at the OS default.
+	 */
+	@Override
+	public void applySocketOptions(String profile) throws SocketException {
+		SocketOptionProfile.get(profile).apply(mChannel.socket());
+	}
+
+	@Override
+	public boolean setNoDelay(boolean value) throws SocketException {
+		boolean prevNoDelay = mChannel.socket().getTcpNoDelay();
+		mChannel.socket().setTcpNoDelay(value);
+		return prevNoDelay;
+	}
+
+	@Override
+	public int setMaxReadLength(int maxLen) {
+		int prevMaxLen = mMaxMsgLen;
+		mMaxMsgLen = maxLen;
+		mDecoder.setMaxMsgLen(maxLen);
+		return prevMaxLen;
+	}
+
+	@Override
+	public int getMaxReadLength() {
+		return mMaxMsgLen;
+	}
+
+	@Override
+	public FrameCompressor compressor() {
+		return mCompressor;
+	}
+
+	@Override
+	public TCPMessageHandlerStats stats() {
+		return mStats;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// send routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * The header and payload are handed to the channel together in one gathering write,
+	 * so an uncompressed payload is never copied.
+	 */
+	@Override
+	public void sendMessage(byte[] buf) throws IOException {
+		ByteBuffer[] srcs = new ByteBuffer[2];
+		_frame(buf, srcs, 0);
+		_write(srcs, null);
+	}
+
+	/**
+	 * All of the frames are handed to the channel in a single gathering write.
+	 */
+	@Override
+	public void sendMessages(List<byte[]> bufs) throws IOException {
+		_write(_frames(bufs), null);
+	}
+
+	/**
+	 * An unattached handler sends the bytes with FileChannel.transferTo(), straight from the file to
+	 * the channel.  An attached (or asynchronous) one reads them into a buffer, which is written, or
+	 * queued for the event loop, like any other frame.  This handler doesn't send streamed messages,
+	 * so count may be no more than maxmsglength.
+	 */
+	@Override
+	public void sendFile(FileChannel file, long position, long count) throws IOException {
+		if ( position < 0 || count < 0 ) throw new IllegalArgumentException("Negative file position or count");
+		if ( position + count > file.size() ) throw new IOException("File region [" + position + ", " + (position + count) + ") extends past end of file");
+		if ( count > mMaxMsgLen ) throw new IOException("File region of " + count + " bytes is longer than the maximum message length " + mMaxMsgLen);
+		int len = (int)count;
+		ByteBuffer header = _header(len);
+		synchronized(mWriteLock) {
+			if ( mLoop == null && !mAsyncMode ) {
+				long start = System.nanoTime();
+				try {
+					while ( header.hasRemaining() ) {
+						if ( mChannel.write(header) == 0 ) _await(SelectionKey.OP_WRITE);
+					}
+					while ( len > 0 ) {
+						long n = file.transferTo(position, len, mChannel);
+						if ( n == 0 ) {
+							if ( position >= file.size() ) throw new EOFException("File ended before the region being sent");
+							_await(SelectionKey.OP_WRITE);
+						}
+						position += n;
+						len -= n;
+					}
+				} finally {
+					mStats.writeTime(System.nanoTime() - start);
+				}
+				mStats.frameSent((int)count);
+				return;
+			}
+			ByteBuffer data = ByteBuffer.allocate(len);
+			while ( data.hasRemaining() ) {
+				if ( file.read(data, position + data.position()) < 0 ) throw new EOFException("File ended before the region being sent");
+			}
+			data.flip();
+			mStats.frameSent(len);
+			_write(new ByteBuffer[] { header, data }, null);
+		}
+	}
+
+	@Override
+	public void sendMessage(String str) throws IOException {
+		sendMessage(str.getBytes());
+	}
+
+	@Override
+	public void sendMessage(int value) throws IOException {
+		sendMessage(TCPMessageHandler.intToByte(value));
+	}
+
+	@Override
+	public void sendMessage(JSONArray jsArray) throws IOException {
+		sendMessage(jsArray.toString().getBytes());
+	}
+
+	@Override
+	public void sendMessage(JSONObject jsObject) throws IOException {
+		sendMessage(jsObject.toString().getBytes());
+	}
+
+	//--------------------------------------------------------------------------------------
+	// read routines
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	public byte[] readMessageAsBytes() throws IOException {
+		synchronized(mReadBuffer) {
+			int payloadLength = _readLength();
+			if ( mInflated != null ) {
+				byte[] b = mInflated;
+				mInflated = null;
+				return b;
+			}
+			byte[] b = new byte[payloadLength];
+			_readFully(b, 0, payloadLength);
+			return b;
+		}
+	}
+
+	@Override
+	public String readMessageAsString() throws IOException {
+		synchronized(mReadBuffer) {
+			int payloadLength = _readLength();
+			byte[] b = _scratch(payloadLength);
+			_readPayload(b, 0, payloadLength);
+			return new String(b, 0, payloadLength);
+		}
+	}
+
+	@Override
+	public int readMessageAsInt() throws IOException {
+		synchronized(mReadBuffer) {
+			int payloadLength = _readLength();
+			if ( payloadLength < HEADER_SIZE ) {
+				_skipPayload(payloadLength);
+				throw new IOException("Message too short to hold an int");
+			}
+			if ( mInflated != null ) {
+				byte[] b = mInflated;
+				mInflated = null;
+				return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			}
+			_requireInFrame(HEADER_SIZE);
+			int value = mReadBuffer.getInt();
+			_skipFully(payloadLength - HEADER_SIZE);
+			return value;
+		}
+	}
+
+	@Override
+	public int readMessageInto(ByteBuffer dst) throws IOException {
+		synchronized(mReadBuffer) {
+			int payloadLength = _readLength();
+			if ( payloadLength > dst.remaining() ) {
+				_skipPayload(payloadLength);
+				throw new IOException("Message of " + payloadLength + " bytes doesn't fit in buffer with " + dst.remaining() + " bytes remaining");
+			}
+			_readPayload(dst, payloadLength);
+			return payloadLength;
+		}
+	}
+
+	@Override
+	public ByteBuffer readMessageAsBuffer(ByteBufferPool pool) throws IOException {
+		synchronized(mReadBuffer) {
+			int payloadLength = _readLength();
+			ByteBuffer buf = pool.lease(payloadLength);
+			try {
+				_readPayload(buf, payloadLength);
+			} catch (IOException e) {
+				pool.release(buf);
+				throw e;
+			}
+			buf.flip();
+			return buf;
+		}
+	}
+
+	@Override
+	public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
+		return new JSONArray(readMessageAsString());
+	}
+
+	@Override
+	public JSONObject readMessageAsJSONObject() throws IOException, JSONException {
+		return new JSONObject(readMessageAsString());
+	}
+
+	//--------------------------------------------------------------------------------------
+	// asynchronous routines
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	public CompletableFuture<Void> sendMessageAsync(byte[] buf) {
+		ByteBuffer[] srcs = new ByteBuffer[2];
+		_frame(buf, srcs, 0);
+		return _writeAsync(srcs);
+	}
+
+	@Override
+	public CompletableFuture<Void> sendMessagesAsync(List<byte[]> bufs) {
+		return _writeAsync(_frames(bufs));
+	}
+
+	@Override
+	public CompletableFuture<byte[]> readMessageAsync() {
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		try {
+			_attachForAsync();
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		byte[] frame;
+		IOException failure;
+		synchronized(mReadyFrames) {
+			frame = mReadyFrames.pollFirst();
+			failure = mAsyncFailure;
+			if ( frame == null && failure == null ) {
+				mPendingReads.addLast(future);
+				return future;
+			}
+		}
+		if ( frame != null ) future.complete(frame);
+		else future.completeExceptionally(failure);
+		return future;
+	}
+
+	/**
+	 * Hands frames from the event loop to waiting readMessageAsync() futures, or holds
+	 * them until there's a read to take them.
+	 */
+	private class AsyncFrameListener implements TCPMessageHandlerEventLoop.FrameListener {
+		@Override
+		public void frameReceived(NIOTCPMessageHandler handler, byte[] frame) {
+			CompletableFuture<byte[]> future;
+			synchronized(mReadyFrames) {
+				future = mPendingReads.pollFirst();
+				if ( future == null ) {
+					mReadyFrames.addLast(frame);
+					return;
+				}
+			}
+			future.complete(frame);
+		}
+
+		@Override
+		public void connectionClosed(NIOTCPMessageHandler handler, IOException cause) {
+			_failAsync(cause != null ? cause : new EOFException("Connection closed by peer"));
+		}
+	}
+
+	/**
+	 * Attaches this handler to the shared event loop, if that hasn't been done already.
+	 * @throws IOException If the handler is attached to some other loop
+	 */
+	private void _attachForAsync() throws IOException {
+		synchronized(mWriteLock) {
+			if ( mAsyncMode ) return;
+			if ( mLoop != null ) throw new IOException("Handler is attached to an event loop; frames are delivered to its FrameListener");
+			mAsyncMode = true;
+		}
+		try {
+			TCPMessageHandlerEventLoop.sharedLoop().register(this, new AsyncFrameListener());
+		} catch (IOException e) {
+			mAsyncMode = false;
+			throw e;
+		}
+	}
+
+	private CompletableFuture<Void> _writeAsync(ByteBuffer[] srcs) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			_attachForAsync();
+			_write(srcs, future);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Fails every outstanding asynchronous operation, and any issued from now on (once
+	 * frames that have already arrived have been read).
+	 */
+	private void _failAsync(IOException cause) {
+		List<CompletableFuture<?>> failed = new ArrayList<CompletableFuture<?>>();
+		synchronized(mReadyFrames) {
+			if ( mAsyncFailure == null ) mAsyncFailure = cause;
+			failed.addAll(mPendingReads);
+			mPendingReads.clear();
+		}
+		synchronized(mWriteLock) {
+			for ( WriteCompletion completion : mWriteCompletions ) failed.add(completion.mFuture);
+			mWriteCompletions.clear();
+		}
+		for ( CompletableFuture<?> future : failed ) future.completeExceptionally(cause);
+	}
+
+	//--------------------------------------------------------------------------------------
+	// event loop support
+	//   These are called by TCPMessageHandlerEventLoop, on its thread.
+	//--------------------------------------------------------------------------------------
+
+	void attach(TCPMessageHandlerEventLoop loop, SelectionKey key) {
+		synchronized(mWriteLock) {
+			mLoop = loop;
+			mKey = key;
+			if ( !mPendingWrites.isEmpty() ) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Returns true if bytes read while the handler was being used in blocking mode are still buffered.
+	 */
+	boolean hasBufferedInput() {
+		synchronized(mReadBuffer) {
+			return mReadBuffer.hasRemaining();
+		}
+	}
+
+	/**
+	 * Does a single non-blocking read and decodes every complete frame that is now available.
+	 * @param frames Decoded payloads are appended to this list.
+	 * @return false if the peer has closed the connection, true otherwise.
+	 */
+	boolean readAvailable(List<byte[]> frames) throws IOException {
+		// anything left buffered from blocking-mode use is decoded along with the new bytes
+		int n = _fillReadBuffer();
+		byte[] frame;
+		while ( (frame = mDecoder.decode(mReadBuffer)) != null ) frames.add(frame);
+		return n >= 0;
+	}
+
+	/**
+	 * Writes as much queued data as the socket will take.  Write interest is dropped once
+	 * the queue drains.
+	 */
+	void flushPendingWrites() throws IOException {
+		List<CompletableFuture<Void>> completed = new ArrayList<CompletableFuture<Void>>();
+		synchronized(mWriteLock) {
+			if ( !mPendingWrites.isEmpty() ) {
+				long start = System.nanoTime();
+				mChannel.write(mPendingWrites.toArray(new ByteBuffer[mPendingWrites.size()]));
+				mStats.writeTime(System.nanoTime() - start);
+				while ( !mPendingWrites.isEmpty() && !mPendingWrites.getFirst().hasRemaining() ) mPendingWrites.removeFirst();
+				while ( !mWriteCompletions.isEmpty() && !mWriteCompletions.getFirst().mLast.hasRemaining() )
+					completed.add(mWriteCompletions.removeFirst().mFuture);
+			}
+			if ( mPendingWrites.isEmpty() && mKey != null && mKey.isValid() ) mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		for ( CompletableFuture<Void> future : completed ) future.complete(null);
+	}
+
+	//--------------------------------------------------------------------------------------
+	// helper routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Fills srcs[i] and srcs[i+1] with the header and payload of an ordinary message,
+	 * compressing the payload if the compressor thinks that's worthwhile.
+	 */
+	private void _frame(byte[] buf, ByteBuffer[] srcs, int i) {
+		if ( mCompressor.codecName() != null ) {
+			byte[] compressed = null;
+			int n;
+			synchronized(mCompressor) {
+				// the frame may be queued for the event loop, so it gets just the compressed bytes;
+				// a payload too big for the reused buffer is compressed into one of its own
+				if ( buf.length > SCRATCH_MAX ) {
+					compressed = new byte[buf.length];
+					n = mCompressor.compress(buf, 0, buf.length, compressed);
+				} else {
+					if ( mCompressBuf.length < buf.length ) mCompressBuf = new byte[Math.min(SCRATCH_MAX, Math.max(buf.length, 2 * mCompressBuf.length))];
+					n = mCompressor.compress(buf, 0, buf.length, mCompressBuf);
+					if ( n >= 0 ) compressed = Arrays.copyOf(mCompressBuf, n);
+				}
+			}
+			if ( n >= 0 ) {
+				srcs[i] = _header(n | FrameCompressor.COMPRESSED_FLAG);
+				srcs[i+1] = ByteBuffer.wrap(compressed, 0, n);
+				mStats.frameSent(n);
+				return;
+			}
+		}
+		srcs[i] = _header(buf.length);
+		srcs[i+1] = ByteBuffer.wrap(buf);
+		mStats.frameSent(buf.length);
+	}
+
+	private ByteBuffer[] _frames(List<byte[]> bufs) {
+		ByteBuffer[] srcs = new ByteBuffer[2 * bufs.size()];
+		int i = 0;
+		for ( byte[] buf : bufs ) {
+			_frame(buf, srcs, i);
+			i += 2;
+		}
+		return srcs;
+	}
+
+	private static ByteBuffer _header(int length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(length).flip();
+		return header;
+	}
+
+	/**
+	 * Writes srcs with gathering writes.  Unattached handlers block until everything has been
+	 * written.  Attached handlers (and those being attached for asynchronous use) write what
+	 * they can immediately and queue the rest (behind anything already waiting) for the event loop.
+	 * @param done If not null, completed once all of srcs has been written
+	 */
+	private void _write(ByteBuffer[] srcs, CompletableFuture<Void> done) throws IOException {
+		long remaining = 0;
+		for ( ByteBuffer src : srcs ) remaining += src.remaining();
+		synchronized(mWriteLock) {
+			long start = System.nanoTime();
+			if ( mLoop == null && !mAsyncMode ) {
+				try {
+					while ( remaining > 0 ) {
+						long n = mChannel.write(srcs);
+						remaining -= n;
+						if ( n == 0 ) _await(SelectionKey.OP_WRITE);
+					}
+				} finally {
+					mStats.writeTime(System.nanoTime() - start);
+				}
+				return;
+			}
+			if ( mPendingWrites.isEmpty() ) {
+				remaining -= mChannel.write(srcs);
+				mStats.writeTime(System.nanoTime() - start);
+			}
+			if ( remaining > 0 ) {
+				for ( ByteBuffer src : srcs ) {
+					if ( src.hasRemaining() ) mPendingWrites.addLast(src);
+				}
+				if ( done != null ) mWriteCompletions.addLast(new WriteCompletion(mPendingWrites.getLast(), done));
+				// a handler still being attached gets write interest when attach() runs
+				if ( mLoop != null ) mLoop.requestWrite(mKey);
+				return;
+			}
+		}
+		if ( done != null ) done.complete(null);
+	}
+
+	/**
+	 * Compacts the read buffer and reads whatever the channel has.
+	 * @return Number of bytes read, 0 if none were available.
+	 * @throws EOFException If the peer has closed and nothing is buffered.
+	 */
+	private int _fillReadBuffer() throws IOException {
+		mReadBuffer.compact();
+		long start = System.nanoTime();
+		int n;
+		try {
+			n = mChannel.read(mReadBuffer);
+		} finally {
+			mReadBuffer.flip();
+			mStats.readTime(System.nanoTime() - start);
+		}
+		if ( n < 0 ) {
+			if ( mLoop != null ) return -1;
+			throw new EOFException("Connection closed by peer");
+		}
+		return n;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// blocking read helpers
+	//   These consume frames straight from the read buffer (the FrameDecoder is used only
+	//   by the event loop).  Callers hold the mReadBuffer lock.
+	//--------------------------------------------------------------------------------------
+
+	private void _checkUnattached() throws IOException {
+		if ( mAsyncMode ) throw new IOException("Handler is in asynchronous mode; use readMessageAsync()");
+		if ( mLoop != null ) throw new IOException("Handler is attached to an event loop; frames are delivered to its FrameListener");
+	}
+
+	/**
+	 * Waits until at least n bytes are buffered.  n must not exceed the buffer's capacity.
+	 */
+	private void _require(int n) throws IOException {
+		while ( mReadBuffer.remaining() < n ) {
+			if ( _fillReadBuffer() == 0 ) {
+				long start = System.nanoTime();
+				try {
+					_await(SelectionKey.OP_READ);
+				} finally {
+					mStats.readTime(System.nanoTime() - start);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until at least n bytes are buffered, partway through a frame.  A timeout here would leave
+	 * the frame part read, so it's thrown as a plain IOException and the connection should be closed.
+	 * (A timeout waiting for a header leaves it unconsumed, and is thrown as a SocketTimeoutException.)
+	 */
+	private void _requireInFrame(int n) throws IOException {
+		try {
+			_require(n);
+		} catch (SocketTimeoutException e) {
+			throw new IOException("Read timed out partway through a frame", e);
+		}
+	}
+
+	private int _readInt() throws IOException {
+		_require(HEADER_SIZE);
+		return mReadBuffer.getInt();
+	}
+
+	/**
+	 * Reads a frame header, returning the payload length.  A compressed payload is read and
+	 * decompressed here, left in mInflated, and its decompressed length returned; either way
+	 * the caller collects the payload with _readPayload() or _skipPayload().
+	 */
+	private int _readLength() throws IOException {
+		_checkUnattached();
+		int header = _readInt();
+		mStats.frameReceived(header & TCPMessageHandler.LENGTH_MASK);
+		int payloadLength = header & ~FrameCompressor.COMPRESSED_FLAG;
+		if ( payloadLength < 0 || payloadLength > mMaxMsgLen ) {
+			mStats.oversized();
+			throw new IOException("The length of the payload is not within bounds");
+		}
+		if ( (header & FrameCompressor.COMPRESSED_FLAG) != 0 ) {
+			byte[] b = _scratch(payloadLength);
+			_readFully(b, 0, payloadLength);
+			mInflated = mCompressor.decompress(b, 0, payloadLength, mMaxMsgLen);
+			return mInflated.length;
+		}
+		return payloadLength;
+	}
+
+	private void _readPayload(byte[] b, int off, int len) throws IOException {
+		if ( mInflated != null ) {
+			System.arraycopy(mInflated, 0, b, off, len);
+			mInflated = null;
+		} else {
+			_readFully(b, off, len);
+		}
+	}
+
+	private void _readPayload(ByteBuffer dst, int len) throws IOException {
+		if ( mInflated != null ) {
+			dst.put(mInflated, 0, len);
+			mInflated = null;
+		} else {
+			_readFully(dst, len);
+		}
+	}
+
+	private void _skipPayload(int len) throws IOException {
+		if ( mInflated != null ) mInflated = null;
+		else _skipFully(len);
+	}
+
+	/**
+	 * Returns mScratch, grown to hold len bytes, or, if len is more than SCRATCH_MAX, a new buffer
+	 * just for this message, so that one big message doesn't pin a big buffer.
+	 */
+	private byte[] _scratch(int len) {
+		if ( len > SCRATCH_MAX ) return new byte[len];
+		if ( mScratch.length < len ) mScratch = new byte[Math.min(SCRATCH_MAX, Math.max(len, 2 * mScratch.length))];
+		return mScratch;
+	}
+
+	private void _readFully(byte[] b, int off, int len) throws IOException {
+		while ( len > 0 ) {
+			_requireInFrame(1);
+			int n = Math.min(len, mReadBuffer.remaining());
+			mReadBuffer.get(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void _readFully(ByteBuffer dst, int len) throws IOException {
+		while ( len > 0 ) {
+			_requireInFrame(1);
+			int n = Math.min(len, mReadBuffer.remaining());
+			int limit = mReadBuffer.limit();
+			mReadBuffer.limit(mReadBuffer.position() + n);
+			dst.put(mReadBuffer);
+			mReadBuffer.limit(limit);
+			len -= n;
+		}
+	}
+
+	private void _skipFully(int len) throws IOException {
+		while ( len > 0 ) {
+			_requireInFrame(1);
+			int n = Math.min(len, mReadBuffer.remaining());
+			mReadBuffer.position(mReadBuffer.position() + n);
+			len -= n;
+		}
+	}
+
+	/**
+	 * Blocks until the channel is ready for op, or the timeout expires.  select() can return early
+	 * with nothing ready (a spurious wakeup, or close()), so that alone isn't taken as a timeout.
+	 */
+	private void _await(int op) throws IOException {
+		if ( mBlockingSelector == null ) {
+			mBlockingSelector = Selector.open();
+			mChannel.register(mBlockingSelector, 0);
+		}
+		SelectionKey key = mChannel.keyFor(mBlockingSelector);
+		key.interestOps(op);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeout);
+		while ( true ) {
+			long remaining = deadline - System.nanoTime();
+			if ( mTimeout > 0 && remaining <= 0 ) {
+				mStats.timeout();
+				throw new SocketTimeoutException("Timed out waiting for channel to become ready");
+			}
+			int nReady;
+			try {
+				// rounded up, since select(0) would wait forever
+				nReady = mTimeout > 0 ? mBlockingSelector.select((remaining + 999999) / 1000000) : mBlockingSelector.select();
+				mBlockingSelector.selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				// close() closes the selector too
+				throw new ClosedChannelException();
+			}
+			if ( nReady > 0 ) return;
+			if ( !mChannel.isOpen() ) throw new ClosedChannelException();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Grows a connection's send buffer to its bandwidth-delay product.
+ * <p>
+ * The tuner leaves the buffer at whatever size the OS gave it until it measures a bandwidth-delay
+ * product that needs more.  (On Linux, setting a buffer's size turns off the kernel's autotuning of
+ * it, which usually does better; the tuner is meant for systems that don't autotune.)  The handler
+ * reports its writes and frame arrivals, from which the tuner keeps two estimates:
+ * <ul>
+ * <li> bandwidth: the bytes written per WINDOW of wall-clock time.  A window begins with the first
+ *      write after a pause of more than WINDOW, so idle time doesn't count against the rate.  The
+ *      estimate is a maximum that slowly decays.
+ * <li> round trip time: the time from the end of a write to the arrival of the next frame.
+ *      That includes the peer's processing time, so the estimate is a minimum that slowly grows.
+ * </ul>
+ * The send buffer is then set to twice their product, rounded up to a power of two and clamped to
+ * [min, max], once that's at least double its current size.  It's never shrunk.  A connection held
+ * back by its buffer moves about a buffer per round trip, so it keeps growing until the network,
+ * not the buffer, is the limit.
+ * <p>
+ * The receive buffer isn't tuned: the window scale is fixed when the connection is made, so growing
+ * it afterwards may not open the window.  SocketOptionProfile sets a configured rcvbuf before connecting
+ * or accepting, where it can.
+ */
+class SocketBufferTuner {
+	private static final String TAG="SocketBufferTuner";
+	private static final long WINDOW = 100000000L;   // nanos
+	private static final double BANDWIDTH_DECAY = 0.95;
+	private static final double RTT_GROWTH = 1.05;
+
+	private final Socket mSock;
+	private final int mMin;
+	private final int mMax;
+	private int mSize;
+	private double mBandwidth = 0;           // bytes/sec
+	private long mRtt = Long.MAX_VALUE;      // nanos
+	private long mLastWriteEnd = 0;
+	private long mWindowStart = 0;           // nanos; 0 when no window is open
+	private long mWindowBytes = 0;
+	private long mLastWrite = 0;
+
+	SocketBufferTuner(Socket sock, int min, int max) throws SocketException {
+		mSock = sock;
+		mMin = min;
+		mMax = max;
+		mSize = sock.getSendBufferSize();
+	}
+
+	/**
+	 * Reports a write of bytes bytes that took nanos nanoseconds.
+	 */
+	synchronized void wrote(long bytes, long nanos) {
+		long now = System.nanoTime();
+		mLastWriteEnd = now;
+		if ( mWindowStart == 0 || now - nanos - mLastWrite > WINDOW ) {
+			mWindowStart = now - nanos;
+			mWindowBytes = 0;
+		}
+		mLastWrite = now;
+		mWindowBytes += bytes;
+		if ( now - mWindowStart < WINDOW ) return;
+		double bandwidth = mWindowBytes * 1e9 / (now - mWindowStart);
+		mBandwidth = Math.max(bandwidth, mBandwidth * BANDWIDTH_DECAY);
+		mWindowStart = now;
+		mWindowBytes = 0;
+		_retune();
+	}
+
+	/**
+	 * Reports the arrival of a frame header.
+	 */
+	synchronized void frameArrived() {
+		if ( mLastWriteEnd == 0 ) return;
+		long rtt = System.nanoTime() - mLastWriteEnd;
+		mLastWriteEnd = 0;
+		mRtt = Math.min(rtt, mRtt == Long.MAX_VALUE ? rtt : (long)(mRtt * RTT_GROWTH));
+		_retune();
+	}
+
+	synchronized int size() {
+		return mSize;
+	}
+
+	private void _retune() {
+		if ( mBandwidth == 0 || mRtt == Long.MAX_VALUE ) return;
+		double bdp = mBandwidth * mRtt / 1e9;
+		long target = Long.highestOneBit((long)(2 * bdp));
+		if ( target < 2 * bdp ) target <<= 1;
+		target = Math.max(mMin, Math.min(mMax, target));
+		if ( target < 2L * mSize ) return;
+		try {
+			mSock.setSendBufferSize((int)target);
+			mSize = (int)target;
+		} catch (SocketException e) {
+			Log.w(TAG, "Can't resize send buffer: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A named set of socket options, read from the config file.
+ * <p>
+ * Profile p is given by entries socket.p.option; options p doesn't set come from the "default"
+ * profile (socket.default.option), and options neither sets are left at the OS default.  Message
+ * handlers apply the default profile when they're created; services then apply the profile named
+ * after themselves (TCPMessageHandlerInterface.applySocketOptions(loadablename())).
+ * The options are:
+ * <ul>
+ * <li> rcvbuf, sndbuf: SO_RCVBUF and SO_SNDBUF, in bytes
+ * <li> nodelay, keepalive: TCP_NODELAY and SO_KEEPALIVE (1 or 0)
+ * <li> trafficclass: IP_TOS
+ * <li> adaptive: if 1, the send buffer is instead grown from the connection's measured
+ *      bandwidth-delay product, between adaptive.min and adaptive.max bytes (see SocketBufferTuner)
+ * </ul>
+ * Setting either buffer size turns off the OS's own tuning of it (on Linux, at least), so it's best
+ * left unset unless the OS doesn't autotune.  The receive buffer size bounds the window scale, which
+ * is fixed when the connection is made, so rcvbuf is also set by applyBeforeConnect() and
+ * applyBeforeAccept(), for sockets that can be configured that early.
+ */
+public class SocketOptionProfile {
+	private static final String TAG="SocketOptionProfile";
+	private static final String PREFIX = "socket";
+
+	private static final ConcurrentHashMap<String, SocketOptionProfile> mProfiles = new ConcurrentHashMap<String, SocketOptionProfile>();
+
+	private final String mProfile;
+	private final Integer mReceiveBufferSize;
+	private final Integer mSendBufferSize;
+	private final Boolean mNoDelay;
+	private final Boolean mKeepAlive;
+	private final Integer mTrafficClass;
+	private final boolean mAdaptive;
+	private final int mAdaptiveMin;
+	private final int mAdaptiveMax;
+
+	/**
+	 * Returns the named profile.  Profiles are read from the config file the first time they're used.
+	 */
+	public static SocketOptionProfile get(String profile) {
+		SocketOptionProfile options = mProfiles.get(profile);
+		if ( options == null ) {
+			options = new SocketOptionProfile(profile);
+			SocketOptionProfile existing = mProfiles.putIfAbsent(profile, options);
+			if ( existing != null ) options = existing;
+		}
+		return options;
+	}
+
+	private SocketOptionProfile(String profile) {
+		ConfigManager config = NetBase.theNetBase().config();
+		mProfile = profile;
+		mReceiveBufferSize = _int(config, "rcvbuf");
+		mSendBufferSize = _int(config, "sndbuf");
+		mNoDelay = _boolean(config, "nodelay");
+		mKeepAlive = _boolean(config, "keepalive");
+		mTrafficClass = _int(config, "trafficclass");
+		Boolean adaptive = _boolean(config, "adaptive");
+		mAdaptive = adaptive != null && adaptive;
+		Integer min = _int(config, "adaptive.min");
+		Integer max = _int(config, "adaptive.max");
+		mAdaptiveMin = min != null ? min : 64 * 1024;
+		mAdaptiveMax = Math.max(mAdaptiveMin, max != null ? max : 4 * 1024 * 1024);
+	}
+
+	/**
+	 * Sets the options this profile specifies on sock.
+	 */
+	public void apply(Socket sock) throws SocketException {
+		if ( mReceiveBufferSize != null ) sock.setReceiveBufferSize(mReceiveBufferSize);
+		if ( mSendBufferSize != null && !mAdaptive ) sock.setSendBufferSize(mSendBufferSize);
+		if ( mNoDelay != null ) sock.setTcpNoDelay(mNoDelay);
+		if ( mKeepAlive != null ) sock.setKeepAlive(mKeepAlive);
+		if ( mTrafficClass != null ) sock.setTrafficClass(mTrafficClass);
+	}
+
+	/**
+	 * Sets the receive buffer size, if this profile specifies one, on a socket that's yet to connect.
+	 */
+	public void applyBeforeConnect(Socket sock) throws SocketException {
+		if ( mReceiveBufferSize != null ) sock.setReceiveBufferSize(mReceiveBufferSize);
+	}
+
+	/**
+	 * Sets the receive buffer size, if this profile specifies one, on a server socket that's yet to be
+	 * bound.  The sockets it accepts inherit it.
+	 */
+	public void applyBeforeAccept(ServerSocket sock) throws SocketException {
+		if ( mReceiveBufferSize != null ) sock.setReceiveBufferSize(mReceiveBufferSize);
+	}
+
+	/**
+	 * Returns a tuner for sock if this profile is adaptive, and null otherwise.
+	 */
+	SocketBufferTuner newTuner(Socket sock) throws SocketException {
+		return mAdaptive ? new SocketBufferTuner(sock, mAdaptiveMin, mAdaptiveMax) : null;
+	}
+
+	public String profile() {
+		return mProfile;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(mProfile).append(':');
+		if ( mReceiveBufferSize != null ) sb.append(" rcvbuf=").append(mReceiveBufferSize);
+		if ( mAdaptive ) sb.append(" adaptive sndbuf ").append(mAdaptiveMin).append('-').append(mAdaptiveMax);
+		else if ( mSendBufferSize != null ) sb.append(" sndbuf=").append(mSendBufferSize);
+		if ( mNoDelay != null ) sb.append(" nodelay=").append(mNoDelay);
+		if ( mKeepAlive != null ) sb.append(" keepalive=").append(mKeepAlive);
+		if ( mTrafficClass != null ) sb.append(" trafficclass=").append(mTrafficClass);
+		return sb.toString();
+	}
+
+	private Integer _int(ConfigManager config, String option) {
+		String value = config.getProfileValue(PREFIX, mProfile, option);
+		if ( value == null ) return null;
+		try {
+			return Integer.decode(value);
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring non-integer value '" + value + "' for socket option " + option + " in profile " + mProfile);
+			return null;
+		}
+	}
+
+	private Boolean _boolean(ConfigManager config, String option) {
+		Integer value = _int(config, option);
+		return value == null ? null : value != 0;
+	}
+}
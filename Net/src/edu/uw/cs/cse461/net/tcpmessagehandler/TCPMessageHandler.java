@@ -1,5 +1,6 @@
 package edu.uw.cs.cse461.net.tcpmessagehandler;
  
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,6 +8,12 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -21,6 +28,22 @@ import edu.uw.cs.cse461.net.base.NetBase;
  * In this implementation, that's done by prefixing the data with a 4-byte
  * length field.
  * <p>
+ * Messages too large to hold in memory can be sent as a stream (openMessageOutputStream())
+ * and received as one (readMessageAsStream()).  On the wire a streamed message is a sequence
+ * of chunk frames, each no longer than maxmsglength.  Every chunk but the last has the high
+ * bit of its length field set, meaning "more chunks follow".  An ordinary message is simply a
+ * stream consisting of one (final) chunk.
+ * <p>
+ * Ordinary messages may also be compressed, once a codec has been selected with
+ * compressor().setCodec().  A compressed message has FrameCompressor.COMPRESSED_FLAG set in its
+ * length field (see FrameCompressor for the details).  Incoming compressed messages are always
+ * decompressed, so either end can start compressing without the other having to do anything.
+ * Streamed chunks are never compressed.
+ * <p>
+ * The asynchronous routines run the corresponding blocking routine on a shared pool of
+ * daemon threads, so each outstanding operation occupies a pool thread while it waits.
+ * (NIOTCPMessageHandler implements them without blocking any thread.)
+ * <p>
  * Design note: TCPMessageHandler cannot usefully subclass Socket, but rather must
  * wrap an existing Socket, because servers must use ServerSocket.accept(), which
  * returns a Socket that must then be turned into a TCPMessageHandler.
@@ -31,8 +54,45 @@ import edu.uw.cs.cse461.net.base.NetBase;
 public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	private static final String TAG="TCPMessageHandler";
 	private static final int HEADER_SIZE = 4;
+	private static final int SEND_BUFFER_SIZE = 64 * 1024;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int READ_BUF_MAX = 64 * 1024;     // larger messages get a readBuf of their own
+	private static final int COMPRESS_BUF_MAX = 64 * 1024; // larger messages are compressed into a buffer of their own
+	private static final int CONTINUATION_FLAG = 0x80000000;
+	static final int LENGTH_MASK = ~(CONTINUATION_FLAG | FrameCompressor.COMPRESSED_FLAG);   // the length bits of a header
 	private Socket sock;
 	private int maxMsgLen;
+	private int chunkSize;
+	private final TCPMessageHandlerStats stats;
+	private volatile SocketBufferTuner tuner = null;
+	
+	// Frames are assembled here, header and payload together, so that each goes out in a single
+	// write (and so a single segment, for small messages).  Guarded by itself.
+	private final byte[] sendBuf = new byte[SEND_BUFFER_SIZE];
+	private int sendBufLen = 0;
+	private MessageOutputStream openOutput = null;
+	
+	// Compressed payloads are built in compressBuf (guarded by sendBuf); a decompressed incoming
+	// payload waits in inflated (guarded by readHeader) until the read routine collects it.
+	private final FrameCompressor compressor = new FrameCompressor();
+	private byte[] compressBuf = new byte[0];
+	private byte[] inflated = null;
+	
+	// Incoming bytes are read in large chunks, so that many small frames are decoded per
+	// socket read.  readHeader and readBuf are reused so that decoding a message needn't
+	// allocate; readBuf grows to fit the messages read through it, up to READ_BUF_MAX, so that
+	// one big message doesn't pin a big buffer for the life of the connection.  All guarded by readHeader.
+	private final FrameReader reader;
+	private final byte[] readHeader = new byte[HEADER_SIZE];
+	private byte[] readBuf = new byte[256];
+	private MessageInputStream openInput = null;
+	
+	// The asynchronous routines run on asyncExecutor.  Each new operation is chained behind the
+	// previous one of its kind, so they complete in order.  Guarded by asyncLock.
+	private static ExecutorService asyncExecutor;
+	private final Object asyncLock = new Object();
+	private CompletableFuture<?> sendTail = CompletableFuture.completedFuture(null);
+	private CompletableFuture<?> readTail = CompletableFuture.completedFuture(null);
 	
 	//--------------------------------------------------------------------------------------
 	// helper routines
@@ -80,8 +140,10 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		this.sock = sock;
 		this.sock.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 15000));
 		this.maxMsgLen = NetBase.theNetBase().config().getAsInt("tcpmessagehandler.maxmsglength", 2097148);
-		sock.setReceiveBufferSize(this.maxMsgLen);
-		sock.setSendBufferSize(this.maxMsgLen);
+		applySocketOptions("default");
+		this.chunkSize = NetBase.theNetBase().config().getAsInt("tcpmessagehandler.chunksize", 65536, 1, this.maxMsgLen);
+		this.stats = TCPMessageHandlerStats.forConnection(sock.getInetAddress() == null ? "unconnected" : sock.getInetAddress().getHostAddress());
+		this.reader = new FrameReader(sock.getInputStream(), READ_BUFFER_SIZE, stats);
 	}
 	
 	/**
@@ -107,6 +169,16 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		return prevTimeout;
 	}
 	
+	/**
+	 * The constructor applies the default profile.
+	 */
+	@Override
+	public void applySocketOptions(String profile) throws SocketException {
+		SocketOptionProfile options = SocketOptionProfile.get(profile);
+		options.apply(sock);
+		tuner = options.newTuner(sock);
+	}
+	
 	/**
 	 * Enable/disable TCPNoDelay on the underlying TCP socket.
 	 * @param value The value to set
@@ -138,17 +210,85 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		return this.maxMsgLen;
 	}
 	
+	@Override
+	public FrameCompressor compressor() {
+		return compressor;
+	}
+	
+	@Override
+	public TCPMessageHandlerStats stats() {
+		return stats;
+	}
+	
 	//--------------------------------------------------------------------------------------
 	// send routines
 	//--------------------------------------------------------------------------------------
 	
 	@Override
 	public void sendMessage(byte[] buf) throws IOException {
-		OutputStream os = sock.getOutputStream();
-		os.write(intToByte(buf.length));
-		os.flush();
-		os.write(buf);
-		os.flush();
+		synchronized(sendBuf) {
+			_checkNoOpenOutput();
+			_appendMessage(buf);
+			_flushSendBuffer();
+		}
+	}
+	
+	/**
+	 * Frames are packed back to back into the send buffer, which is written only when
+	 * it fills or after the last frame has been added.
+	 */
+	@Override
+	public void sendMessages(List<byte[]> bufs) throws IOException {
+		synchronized(sendBuf) {
+			_checkNoOpenOutput();
+			for ( byte[] buf : bufs ) _appendMessage(buf);
+			_flushSendBuffer();
+		}
+	}
+	
+	/**
+	 * Starts a streamed message.  Bytes written to the returned stream are sent in chunks of
+	 * tcpmessagehandler.chunksize bytes (at most maxmsglength) as they accumulate; flush()
+	 * sends whatever is buffered; close() ends the message.  The message can be of any length.
+	 * <p>
+	 * Until the stream is closed no other message can be sent on this handler -- the other
+	 * send routines throw an IOException.
+	 */
+	public OutputStream openMessageOutputStream() throws IOException {
+		synchronized(sendBuf) {
+			_checkNoOpenOutput();
+			openOutput = new MessageOutputStream();
+			return openOutput;
+		}
+	}
+	
+	/**
+	 * Sends count bytes of file, starting at position, as a message.  If the socket was created
+	 * by a (blocking) SocketChannel -- e.g., SocketChannel.open(addr).socket(), or the socket of a
+	 * channel returned by ServerSocketChannel.accept() -- the bytes go from the file to the socket
+	 * with FileChannel.transferTo(), without being copied through the Java heap.  Otherwise they're
+	 * copied through the send buffer.  The file's own position is not changed.
+	 * <p>
+	 * A region longer than maxmsglength is sent as a streamed message (see openMessageOutputStream()),
+	 * which the receiver must read with readMessageAsStream().  Shorter regions are ordinary messages.
+	 * File data is never compressed.
+	 * @throws IOException If the region extends past the end of the file, or on a write error
+	 */
+	@Override
+	public void sendFile(FileChannel file, long position, long count) throws IOException {
+		if ( position < 0 || count < 0 ) throw new IllegalArgumentException("Negative file position or count");
+		if ( position + count > file.size() ) throw new IOException("File region [" + position + ", " + (position + count) + ") extends past end of file");
+		synchronized(sendBuf) {
+			_checkNoOpenOutput();
+			do {
+				int len = (int)Math.min(count, this.maxMsgLen);
+				count -= len;
+				_appendHeader(len | (count > 0 ? CONTINUATION_FLAG : 0));
+				_transferFrom(file, position, len);
+				position += len;
+			} while ( count > 0 );
+			_flushSendBuffer();
+		}
 	}
 	
 	/**
@@ -183,6 +323,112 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		this.sendMessage(jsObject.toString().getBytes());
 	}
 	
+	/**
+	 * Appends an ordinary message, compressed if the compressor thinks that's worthwhile.
+	 * Caller holds the sendBuf lock.
+	 */
+	private void _appendMessage(byte[] buf) throws IOException {
+		if ( compressor.codecName() != null ) {
+			// one big message mustn't pin a big buffer for the life of the connection
+			byte[] out;
+			if ( buf.length > COMPRESS_BUF_MAX ) {
+				out = new byte[buf.length];
+			} else {
+				if ( compressBuf.length < buf.length ) compressBuf = new byte[Math.min(COMPRESS_BUF_MAX, Math.max(buf.length, 2 * compressBuf.length))];
+				out = compressBuf;
+			}
+			int n = compressor.compress(buf, 0, buf.length, out);
+			if ( n >= 0 ) {
+				_appendFrame(out, 0, n, FrameCompressor.COMPRESSED_FLAG);
+				return;
+			}
+		}
+		_appendFrame(buf, 0, buf.length, 0);
+	}
+	
+	/**
+	 * Copies the header and as much of the payload as fits into the send buffer.  A payload
+	 * too large to fit is written directly, after the buffer (which holds its header and the
+	 * beginning of its data) has been written.  Caller holds the sendBuf lock.
+	 * @param flags Or'ed into the length field (CONTINUATION_FLAG, COMPRESSED_FLAG, or 0)
+	 */
+	private void _appendFrame(byte[] buf, int off, int len, int flags) throws IOException {
+		_appendHeader(len | flags);
+		int n = Math.min(len, sendBuf.length - sendBufLen);
+		System.arraycopy(buf, off, sendBuf, sendBufLen, n);
+		sendBufLen += n;
+		if ( n < len ) {
+			_flushSendBuffer();
+			long start = System.nanoTime();
+			sock.getOutputStream().write(buf, off + n, len - n);
+			_wrote(len - n, start);
+		}
+	}
+	
+	private void _appendHeader(int header) throws IOException {
+		if ( sendBufLen + HEADER_SIZE > sendBuf.length ) _flushSendBuffer();
+		sendBuf[sendBufLen++] = (byte)header;
+		sendBuf[sendBufLen++] = (byte)(header >>> 8);
+		sendBuf[sendBufLen++] = (byte)(header >>> 16);
+		sendBuf[sendBufLen++] = (byte)(header >>> 24);
+		stats.frameSent(header & LENGTH_MASK);
+	}
+	
+	/**
+	 * Sends len bytes of file, starting at position, following whatever is in the send buffer.
+	 * Caller holds the sendBuf lock.
+	 */
+	private void _transferFrom(FileChannel file, long position, int len) throws IOException {
+		SocketChannel channel = sock.getChannel();
+		if ( channel != null && channel.isBlocking() ) {
+			_flushSendBuffer();
+			long start = System.nanoTime();
+			long total = len;
+			while ( len > 0 ) {
+				long n = file.transferTo(position, len, channel);
+				if ( n <= 0 ) throw new EOFException("File ended before the region being sent");
+				position += n;
+				len -= n;
+			}
+			_wrote(total, start);
+			return;
+		}
+		// no channel to transfer to, so the bytes are read into the send buffer behind the header
+		while ( len > 0 ) {
+			if ( sendBufLen == sendBuf.length ) _flushSendBuffer();
+			int n = file.read(ByteBuffer.wrap(sendBuf, sendBufLen, Math.min(len, sendBuf.length - sendBufLen)), position);
+			if ( n < 0 ) throw new EOFException("File ended before the region being sent");
+			sendBufLen += n;
+			position += n;
+			len -= n;
+		}
+	}
+	
+	private void _checkNoOpenOutput() throws IOException {
+		if ( openOutput != null ) throw new IOException("A message output stream is open on this handler");
+	}
+	
+	private void _flushSendBuffer() throws IOException {
+		if ( sendBufLen == 0 ) return;
+		int len = sendBufLen;
+		sendBufLen = 0;   // a failed write leaves the stream unusable anyway; don't resend partial frames
+		long start = System.nanoTime();
+		OutputStream os = sock.getOutputStream();
+		os.write(sendBuf, 0, len);
+		os.flush();
+		_wrote(len, start);
+	}
+	
+	/**
+	 * Records a completed socket write of bytes bytes that began at time start.
+	 */
+	private void _wrote(long bytes, long start) {
+		long nanos = System.nanoTime() - start;
+		stats.writeTime(nanos);
+		SocketBufferTuner t = tuner;
+		if ( t != null ) t.wrote(bytes, nanos);
+	}
+	
 	//--------------------------------------------------------------------------------------
 	// read routines
 	//   All of these invert any encoding done by the corresponding send method.
@@ -190,30 +436,85 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	
 	@Override
 	public byte[] readMessageAsBytes() throws IOException {
-		byte[] b = new byte[HEADER_SIZE];
-		InputStream is = sock.getInputStream();
-		int res = is.read(b);
-		int payloadLength = byteToInt(b);
-		if (payloadLength < 0 || payloadLength > this.maxMsgLen) 
-			throw new IOException("The length of the payload is not within bounds");
-		b = new byte[payloadLength];
-		res = is.read(b);
-		if (res != payloadLength) {
-			throw new IOException("Length header did not match the size of the payload");
+		synchronized(readHeader) {
+			int payloadLength = _readLength();
+			if ( inflated != null ) {
+				byte[] b = inflated;
+				inflated = null;
+				return b;
+			}
+			byte[] b = new byte[payloadLength];
+			_readPayload(b, 0, payloadLength);
+			return b;
 		}
-		return b;
 	}
 	
+	/**
+	 * Decodes straight out of a reused buffer, so the only allocation is the String itself.
+	 */
 	@Override
 	public String readMessageAsString() throws IOException {
-		byte[] b = this.readMessageAsBytes();
-		return new String(b);
+		synchronized(readHeader) {
+			int payloadLength = _readLength();
+			byte[] b = _readBuf(payloadLength);
+			_readPayload(b, 0, payloadLength);
+			return new String(b, 0, payloadLength);
+		}
 	}
 
 	@Override
 	public int readMessageAsInt() throws IOException {
-		byte[] b = this.readMessageAsBytes();
-		return byteToInt(b);
+		synchronized(readHeader) {
+			int payloadLength = _readLength();
+			byte[] b = _readBuf(payloadLength);
+			_readPayload(b, 0, payloadLength);
+			if ( payloadLength < HEADER_SIZE ) throw new IOException("Message too short to hold an int");
+			return _getInt(b);
+		}
+	}
+	
+	@Override
+	public int readMessageInto(ByteBuffer dst) throws IOException {
+		synchronized(readHeader) {
+			int payloadLength = _readLength();
+			if ( payloadLength > dst.remaining() ) {
+				_skipPayload(payloadLength);
+				throw new IOException("Message of " + payloadLength + " bytes doesn't fit in buffer with " + dst.remaining() + " bytes remaining");
+			}
+			_readPayload(dst, payloadLength);
+			return payloadLength;
+		}
+	}
+	
+	@Override
+	public ByteBuffer readMessageAsBuffer(ByteBufferPool pool) throws IOException {
+		synchronized(readHeader) {
+			int payloadLength = _readLength();
+			ByteBuffer buf = pool.lease(payloadLength);
+			try {
+				_readPayload(buf, payloadLength);
+			} catch (IOException e) {
+				pool.release(buf);
+				throw e;
+			}
+			buf.flip();
+			return buf;
+		}
+	}
+	
+	/**
+	 * Reads the next message as a stream, so that it needn't fit in memory (or within
+	 * maxmsglength).  Works for both streamed and ordinary messages.  The stream returns -1
+	 * at the end of the message; closing it early discards the rest of the message.
+	 * <p>
+	 * Until the stream is closed no other message can be read on this handler.
+	 */
+	public InputStream readMessageAsStream() throws IOException {
+		synchronized(readHeader) {
+			_checkNoOpenInput();
+			openInput = new MessageInputStream(_readHeaderWord());
+			return openInput;
+		}
 	}
 	
 	@Override
@@ -227,4 +528,329 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		String s = this.readMessageAsString();
 		return new JSONObject(s);
 	}
+	
+	//--------------------------------------------------------------------------------------
+	// read helpers
+	//   Callers hold the readHeader lock.
+	//--------------------------------------------------------------------------------------
+	
+	/**
+	 * Reads the header of an ordinary (unstreamed) message, returning the payload length it announces.
+	 * A streamed message is consumed and discarded, so that the connection stays usable.
+	 * A compressed message is read and decompressed here; its payload is then left in inflated,
+	 * and the length returned is the decompressed length.  Either way, the caller must collect
+	 * the payload with _readPayload() or _skipPayload().
+	 */
+	private int _readLength() throws IOException {
+		_checkNoOpenInput();
+		int header = _readHeaderWord();
+		if ( (header & CONTINUATION_FLAG) != 0 ) {
+			new MessageInputStream(header).close();
+			throw new IOException("Received a streamed message; it must be read with readMessageAsStream()");
+		}
+		if ( (header & FrameCompressor.COMPRESSED_FLAG) != 0 ) {
+			inflated = _readCompressed(header);
+			return inflated.length;
+		}
+		if (header > this.maxMsgLen) 
+			throw _oversized();
+		return header;
+	}
+	
+	/**
+	 * Reads the payload of a compressed frame, given its header, and returns it decompressed.
+	 */
+	private byte[] _readCompressed(int header) throws IOException {
+		int len = header & LENGTH_MASK;
+		if ( len > this.maxMsgLen ) throw _oversized();
+		byte[] b = _readBuf(len);
+		reader.readFully(b, 0, len);
+		return compressor.decompress(b, 0, len, this.maxMsgLen);
+	}
+	
+	/**
+	 * Reads the payload of the message whose header _readLength() just returned.
+	 */
+	private void _readPayload(byte[] b, int off, int len) throws IOException {
+		if ( inflated != null ) {
+			System.arraycopy(inflated, 0, b, off, len);
+			inflated = null;
+		} else {
+			reader.readFully(b, off, len);
+		}
+	}
+	
+	private void _readPayload(ByteBuffer dst, int len) throws IOException {
+		if ( inflated != null ) {
+			dst.put(inflated, 0, len);
+			inflated = null;
+		} else {
+			reader.readFully(dst, len);
+		}
+	}
+	
+	private void _skipPayload(int len) throws IOException {
+		if ( inflated != null ) inflated = null;
+		else reader.skipFully(len);
+	}
+	
+	/**
+	 * Reads a raw frame header (length plus flags).
+	 */
+	private int _readHeaderWord() throws IOException {
+		reader.readHeader(readHeader, HEADER_SIZE);
+		int header = _getInt(readHeader);
+		stats.frameReceived(header & LENGTH_MASK);
+		SocketBufferTuner t = tuner;
+		if ( t != null ) t.frameArrived();
+		return header;
+	}
+	
+	/**
+	 * Counts, and returns the exception for, a frame longer than maxMsgLen.
+	 */
+	private IOException _oversized() {
+		stats.oversized();
+		return new IOException("The length of the payload is not within bounds");
+	}
+	
+	private void _checkNoOpenInput() throws IOException {
+		if ( openInput != null ) throw new IOException("A message input stream is open on this handler");
+	}
+	
+	private static int _getInt(byte[] b) {
+		return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+	}
+	
+	/**
+	 * Returns the reusable read buffer, first growing it if it's smaller than len, or, if len is
+	 * more than READ_BUF_MAX, a new buffer just for this message.
+	 */
+	private byte[] _readBuf(int len) {
+		if ( len > READ_BUF_MAX ) return new byte[len];
+		if ( readBuf.length < len ) readBuf = new byte[Math.min(READ_BUF_MAX, Math.max(len, 2 * readBuf.length))];
+		return readBuf;
+	}
+	
+	//--------------------------------------------------------------------------------------
+	// asynchronous routines
+	//--------------------------------------------------------------------------------------
+	
+	@Override
+	public CompletableFuture<Void> sendMessageAsync(byte[] buf) {
+		synchronized(asyncLock) {
+			CompletableFuture<Void> future = _runAfter(sendTail, () -> { sendMessage(buf); return null; });
+			sendTail = future;
+			return future;
+		}
+	}
+	
+	@Override
+	public CompletableFuture<Void> sendMessagesAsync(List<byte[]> bufs) {
+		synchronized(asyncLock) {
+			CompletableFuture<Void> future = _runAfter(sendTail, () -> { sendMessages(bufs); return null; });
+			sendTail = future;
+			return future;
+		}
+	}
+	
+	@Override
+	public CompletableFuture<byte[]> readMessageAsync() {
+		synchronized(asyncLock) {
+			CompletableFuture<byte[]> future = _runAfter(readTail, () -> readMessageAsBytes());
+			readTail = future;
+			return future;
+		}
+	}
+	
+	private interface AsyncCall<T> {
+		public T call() throws IOException;
+	}
+	
+	/**
+	 * Returns a future for the result of running call on the async pool once previous has
+	 * completed (whether normally or not).
+	 */
+	private static <T> CompletableFuture<T> _runAfter(CompletableFuture<?> previous, AsyncCall<T> call) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		previous.whenComplete((r, e) -> _asyncExecutor().execute(() -> {
+			try {
+				future.complete(call.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}));
+		return future;
+	}
+	
+	private static synchronized ExecutorService _asyncExecutor() {
+		if ( asyncExecutor == null ) {
+			asyncExecutor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "TCPMessageHandler async");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return asyncExecutor;
+	}
+	
+	//--------------------------------------------------------------------------------------
+	// streamed messages
+	//--------------------------------------------------------------------------------------
+	
+	/**
+	 * Accumulates written bytes into chunks, sending each as a continuation frame when it fills.
+	 */
+	private class MessageOutputStream extends OutputStream {
+		private final byte[] chunk = new byte[chunkSize];
+		private int chunkLen = 0;
+		private boolean closed = false;
+		
+		@Override
+		public void write(int b) throws IOException {
+			_checkOpen();
+			chunk[chunkLen++] = (byte)b;
+			if ( chunkLen == chunk.length ) _sendChunk(chunk, 0, chunkLen, CONTINUATION_FLAG);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_checkOpen();
+			while ( len > 0 ) {
+				if ( chunkLen == 0 && len >= chunk.length ) {
+					// a whole chunk's worth: send it straight from the caller's array
+					_sendChunk(b, off, chunk.length, CONTINUATION_FLAG);
+					off += chunk.length;
+					len -= chunk.length;
+					continue;
+				}
+				int n = Math.min(len, chunk.length - chunkLen);
+				System.arraycopy(b, off, chunk, chunkLen, n);
+				chunkLen += n;
+				off += n;
+				len -= n;
+				if ( chunkLen == chunk.length ) _sendChunk(chunk, 0, chunkLen, CONTINUATION_FLAG);
+			}
+		}
+		
+		/**
+		 * Sends any buffered bytes as a (short) continuation chunk.
+		 */
+		@Override
+		public void flush() throws IOException {
+			_checkOpen();
+			if ( chunkLen > 0 ) _sendChunk(chunk, 0, chunkLen, CONTINUATION_FLAG);
+		}
+		
+		/**
+		 * Sends the final chunk, ending the message.
+		 */
+		@Override
+		public void close() throws IOException {
+			if ( closed ) return;
+			closed = true;
+			synchronized(sendBuf) {
+				openOutput = null;
+				_appendFrame(chunk, 0, chunkLen, 0);
+				_flushSendBuffer();
+			}
+		}
+		
+		private void _sendChunk(byte[] b, int off, int len, int flags) throws IOException {
+			synchronized(sendBuf) {
+				_appendFrame(b, off, len, flags);
+				_flushSendBuffer();
+			}
+			if ( b == chunk ) chunkLen = 0;
+		}
+		
+		private void _checkOpen() throws IOException {
+			if ( closed ) throw new IOException("Message output stream is closed");
+		}
+	}
+	
+	/**
+	 * Delivers the payloads of a message's chunks as one continuous stream.
+	 */
+	private class MessageInputStream extends InputStream {
+		private byte[] chunkData;    // the decompressed chunk, if it arrived compressed
+		private int chunkRemaining;
+		private boolean more;
+		private boolean closed = false;
+		private final byte[] single = new byte[1];
+		
+		MessageInputStream(int header) throws IOException {
+			_startChunk(header);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int n = read(single, 0, 1);
+			return n < 0 ? -1 : single[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			synchronized(readHeader) {
+				if ( closed ) throw new IOException("Message input stream is closed");
+				if ( len == 0 ) return 0;
+				if ( !_advance() ) return -1;
+				int n = Math.min(len, chunkRemaining);
+				if ( chunkData != null ) System.arraycopy(chunkData, chunkData.length - chunkRemaining, b, off, n);
+				else reader.readFully(b, off, n);
+				chunkRemaining -= n;
+				return n;
+			}
+		}
+		
+		/**
+		 * Returns the number of bytes left in the current chunk (which can be read without waiting
+		 * for another chunk header).
+		 */
+		@Override
+		public int available() {
+			return chunkRemaining;
+		}
+		
+		/**
+		 * Consumes and discards whatever is left of the message.
+		 */
+		@Override
+		public void close() throws IOException {
+			synchronized(readHeader) {
+				if ( closed ) return;
+				closed = true;
+				if ( openInput == this ) openInput = null;
+				while ( _advance() ) {
+					if ( chunkData == null ) reader.skipFully(chunkRemaining);
+					chunkRemaining = 0;
+				}
+			}
+		}
+		
+		private void _startChunk(int header) throws IOException {
+			more = (header & CONTINUATION_FLAG) != 0;
+			chunkData = null;
+			if ( (header & FrameCompressor.COMPRESSED_FLAG) != 0 ) {
+				// only an ordinary message read as a stream can arrive this way
+				chunkData = _readCompressed(header);
+				chunkRemaining = chunkData.length;
+				return;
+			}
+			chunkRemaining = header & ~CONTINUATION_FLAG;
+			if ( chunkRemaining > maxMsgLen ) throw _oversized();
+		}
+		
+		/**
+		 * Moves on to the next non-empty chunk if the current one is used up.
+		 * @return false at the end of the message
+		 */
+		private boolean _advance() throws IOException {
+			while ( chunkRemaining == 0 ) {
+				if ( !more ) return false;
+				_startChunk(_readHeaderWord());
+			}
+			return true;
+		}
+	}
 }
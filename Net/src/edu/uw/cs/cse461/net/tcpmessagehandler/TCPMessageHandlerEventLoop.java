@@ -0,0 +1,289 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A single thread that services any number of NIOTCPMessageHandlers using a Selector.
+ * <p>
+ * Handlers are attached with register().  From then on, each complete frame that arrives on
+ * the handler's channel is decoded by this thread and passed to the handler's FrameListener.
+ * Listeners run on the loop thread, so they must not block; anything slow should be handed
+ * off to another thread.  Replies can be sent from the listener (or any other thread) with the
+ * handler's normal sendMessage() routines -- data the socket can't accept right away is
+ * queued and written by this thread as the socket drains.  A listener that throws a
+ * RuntimeException loses its own connection, which is closed; the loop and its other
+ * connections carry on.
+ * <p>
+ * The loop can also accept connections on a ServerSocketChannel (see listen()), so a server
+ * needs no threads of its own at all.
+ * <p>
+ * sharedLoop() is a process-wide loop (on a daemon thread) that services handlers using the
+ * asynchronous read and send routines.
+ */
+public class TCPMessageHandlerEventLoop implements Runnable {
+	private static final String TAG="TCPMessageHandlerEventLoop";
+
+	/**
+	 * Receives the frames arriving on a registered handler.
+	 */
+	public interface FrameListener {
+		/**
+		 * Called on the loop thread once for each frame received, in arrival order.
+		 */
+		public void frameReceived(NIOTCPMessageHandler handler, byte[] frame);
+
+		/**
+		 * Called on the loop thread when the connection has been closed, either by the peer
+		 * or because of an error.  The handler has already been closed when this is called.
+		 * @param cause null for an orderly close by the peer; otherwise the exception that ended the connection
+		 */
+		public void connectionClosed(NIOTCPMessageHandler handler, IOException cause);
+	}
+
+	/**
+	 * Fields connections accepted on a listening channel.
+	 */
+	public interface AcceptListener {
+		/**
+		 * Called on the loop thread for each newly accepted connection.
+		 * @return The listener for frames on the new connection, or null to close it.
+		 */
+		public FrameListener connectionAccepted(NIOTCPMessageHandler handler);
+	}
+
+	private final Selector mSelector;
+	private final ConcurrentLinkedQueue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Thread mThread;
+	private final int mGranularity;
+	private volatile boolean mAmShutdown = false;
+	// written only by the loop thread, but read by any
+	private volatile int mConnectionCount = 0;
+
+	private static TCPMessageHandlerEventLoop mSharedLoop;
+
+	/**
+	 * Returns the process-wide loop used by NIOTCPMessageHandlers' asynchronous routines,
+	 * starting it if necessary.
+	 */
+	public static synchronized TCPMessageHandlerEventLoop sharedLoop() throws IOException {
+		if ( mSharedLoop == null || mSharedLoop.mAmShutdown ) mSharedLoop = new TCPMessageHandlerEventLoop("TCPMessageHandler shared event loop", true);
+		return mSharedLoop;
+	}
+
+	/**
+	 * Opens the selector and starts the loop thread.
+	 * @param name Used to name the loop thread
+	 * @throws IOException
+	 */
+	public TCPMessageHandlerEventLoop(String name) throws IOException {
+		this(name, false);
+	}
+
+	private TCPMessageHandlerEventLoop(String name, boolean daemon) throws IOException {
+		mSelector = Selector.open();
+		mGranularity = NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500);
+		mThread = new Thread(this, name);
+		mThread.setDaemon(daemon);
+		mThread.start();
+	}
+
+	/**
+	 * Attaches handler to this loop.  Frames received on it from now on are delivered to listener.
+	 * May be called from any thread.
+	 */
+	public void register(final NIOTCPMessageHandler handler, final FrameListener listener) {
+		_runOnLoop(new Runnable() {
+			public void run() {
+				_register(handler, listener);
+			}
+		});
+	}
+
+	/**
+	 * Accepts connections on channel, registering each with the listener acceptListener returns for it.
+	 * May be called from any thread.
+	 */
+	public void listen(final ServerSocketChannel channel, final AcceptListener acceptListener) throws IOException {
+		channel.configureBlocking(false);
+		_runOnLoop(new Runnable() {
+			public void run() {
+				try {
+					channel.register(mSelector, SelectionKey.OP_ACCEPT, acceptListener);
+				} catch (IOException e) {
+					Log.e(TAG, "Can't listen on " + channel + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of connections currently attached to the loop.
+	 */
+	public int connectionCount() {
+		return mConnectionCount;
+	}
+
+	/**
+	 * Stops the loop thread and closes every attached handler, telling its listener (with an
+	 * EOFException) as if the peer had closed.
+	 */
+	public void shutdown() {
+		mAmShutdown = true;
+		mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		try {
+			while ( !mAmShutdown ) {
+				mSelector.select(mGranularity);
+				Runnable task;
+				while ( (task = mPendingTasks.poll()) != null ) task.run();
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while ( it.hasNext() ) {
+					SelectionKey key = it.next();
+					it.remove();
+					if ( !key.isValid() ) continue;
+					if ( key.isAcceptable() ) {
+						_accept(key);
+						continue;
+					}
+					NIOTCPMessageHandler handler = (NIOTCPMessageHandler)((Object[])key.attachment())[0];
+					FrameListener listener = (FrameListener)((Object[])key.attachment())[1];
+					try {
+						if ( key.isWritable() ) handler.flushPendingWrites();
+						if ( key.isValid() && key.isReadable() ) _read(key, handler, listener, frames);
+					} catch (IOException e) {
+						frames.clear();
+						_closed(key, handler, listener, e);
+					} catch (RuntimeException e) {
+						frames.clear();
+						_closed(key, handler, listener, _listenerFailed(e));
+					}
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Event loop exiting due to exception: " + e.getMessage());
+		} finally {
+			// closing the handlers completes their pending reads and sends, and lets their listeners clean up
+			EOFException shutdown = new EOFException("event loop shut down");
+			// handlers still waiting to be registered are registered, so that they're closed too
+			Runnable task;
+			while ( (task = mPendingTasks.poll()) != null ) {
+				try { task.run(); } catch (Exception e) {}
+			}
+			for ( SelectionKey key : new ArrayList<SelectionKey>(mSelector.keys()) ) {
+				if ( key.attachment() instanceof Object[] ) {
+					Object[] attachment = (Object[])key.attachment();
+					_closed(key, (NIOTCPMessageHandler)attachment[0], (FrameListener)attachment[1], shutdown);
+				} else {
+					try { key.channel().close(); } catch (Exception e) {}
+				}
+			}
+			try { mSelector.close(); } catch (Exception e) {}
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// helper routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Called by a handler that has data queued to write.  May be called from any thread.
+	 */
+	void requestWrite(final SelectionKey key) {
+		_runOnLoop(new Runnable() {
+			public void run() {
+				if ( key.isValid() ) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		});
+	}
+
+	private void _read(SelectionKey key, NIOTCPMessageHandler handler, FrameListener listener, List<byte[]> frames) throws IOException {
+		boolean open = handler.readAvailable(frames);
+		for ( byte[] frame : frames ) listener.frameReceived(handler, frame);
+		frames.clear();
+		if ( !open ) _closed(key, handler, listener, null);
+	}
+
+	private void _runOnLoop(Runnable task) {
+		mPendingTasks.add(task);
+		mSelector.wakeup();
+	}
+
+	private void _register(NIOTCPMessageHandler handler, FrameListener listener) {
+		try {
+			SelectionKey key = handler.channel().register(mSelector, SelectionKey.OP_READ, new Object[] { handler, listener });
+			handler.attach(this, key);
+			mConnectionCount++;
+			// frames already buffered won't make the channel readable, so deliver them now
+			if ( handler.hasBufferedInput() ) {
+				try {
+					_read(key, handler, listener, new ArrayList<byte[]>());
+				} catch (IOException e) {
+					_closed(key, handler, listener, e);
+				} catch (RuntimeException e) {
+					_closed(key, handler, listener, _listenerFailed(e));
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Can't register handler: " + e.getMessage());
+			handler.close();
+			listener.connectionClosed(handler, e);
+		}
+	}
+
+	private void _accept(SelectionKey key) {
+		AcceptListener acceptListener = (AcceptListener)key.attachment();
+		try {
+			SocketChannel channel;
+			while ( (channel = ((ServerSocketChannel)key.channel()).accept()) != null ) {
+				NIOTCPMessageHandler handler = new NIOTCPMessageHandler(channel);
+				FrameListener listener;
+				try {
+					listener = acceptListener.connectionAccepted(handler);
+				} catch (RuntimeException e) {
+					_listenerFailed(e);
+					listener = null;
+				}
+				if ( listener == null ) handler.close();
+				else _register(handler, listener);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Exception accepting connection: " + e.getMessage());
+		}
+	}
+
+	private void _closed(SelectionKey key, NIOTCPMessageHandler handler, FrameListener listener, IOException cause) {
+		key.cancel();
+		handler.close();
+		mConnectionCount--;
+		try {
+			listener.connectionClosed(handler, cause);
+		} catch (RuntimeException e) {
+			_listenerFailed(e);
+		}
+	}
+
+	/**
+	 * Logs a listener's exception, and returns it as the cause of closing the listener's connection.
+	 */
+	private IOException _listenerFailed(RuntimeException e) {
+		Log.e(TAG, "Listener threw " + e + "; closing its connection");
+		return new IOException("Listener threw " + e, e);
+	}
+}
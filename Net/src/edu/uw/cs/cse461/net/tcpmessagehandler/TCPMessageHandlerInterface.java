@@ -2,6 +2,10 @@ package edu.uw.cs.cse461.net.tcpmessagehandler;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -21,6 +25,21 @@ public interface TCPMessageHandlerInterface {
 	public void sendMessage(JSONArray jsArray) throws IOException;
 	public void sendMessage(JSONObject jsObject) throws IOException;
 	
+	/**
+	 * Sends each element of bufs as its own message, exactly as a sequence of sendMessage(byte[])
+	 * calls would, but coalesces the frames into as few socket writes as possible.
+	 */
+	public void sendMessages(List<byte[]> bufs) throws IOException;
+	
+	/**
+	 * Sends count bytes of file, starting at position, as a message, with FileChannel.transferTo()
+	 * when the socket allows, so the bytes aren't copied through the Java heap.  File data is never
+	 * compressed, and the file's own position is not changed.  See the implementations for what
+	 * happens to regions longer than maxmsglength.
+	 * @throws IOException If the region extends past the end of the file, or on a write error
+	 */
+	public void sendFile(FileChannel file, long position, long count) throws IOException;
+	
 	//--------------------------------------------------------------------------------------
 	// read routines
 	//   Data comes off the network as bytes.  The various read routines
@@ -35,9 +54,71 @@ public interface TCPMessageHandlerInterface {
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException;
 	public JSONObject readMessageAsJSONObject() throws IOException, JSONException;
 	
+	/**
+	 * Reads the next message directly into dst, starting at its position, without allocating.
+	 * On return dst's position has been advanced past the payload.  If the payload won't fit
+	 * in dst's remaining space it is consumed and discarded, and an IOException is thrown.
+	 * @return The length of the payload
+	 */
+	public int readMessageInto(ByteBuffer dst) throws IOException;
+	
+	/**
+	 * Reads the next message into a buffer leased from pool.  The returned buffer is flipped
+	 * (position 0, limit the payload length).  The caller owns it and should hand it back
+	 * with pool.release() when done.
+	 */
+	public ByteBuffer readMessageAsBuffer(ByteBufferPool pool) throws IOException;
+	
+	//--------------------------------------------------------------------------------------
+	// asynchronous routines
+	//   These return immediately.  Operations of each kind complete in the order they were
+	//   issued, and failures (including end-of-file) complete the future exceptionally with
+	//   the IOException.  Dependent stages that aren't ...Async() may run on an I/O thread,
+	//   so they shouldn't block.  There is no read timeout; use get(timeout, unit) if one is wanted.
+	//--------------------------------------------------------------------------------------
+	
+	/**
+	 * Sends buf as a message.  The future completes once the message has been handed to the socket.
+	 */
+	public CompletableFuture<Void> sendMessageAsync(byte[] buf);
+	
+	/**
+	 * The asynchronous equivalent of sendMessages().
+	 */
+	public CompletableFuture<Void> sendMessagesAsync(List<byte[]> bufs);
+	
+	/**
+	 * Reads the next message.
+	 */
+	public CompletableFuture<byte[]> readMessageAsync();
+	
+	/**
+	 * Uses str.getBytes() for conversion.
+	 */
+	public default CompletableFuture<Void> sendMessageAsync(String str) {
+		return sendMessageAsync(str.getBytes());
+	}
+	
+	public default CompletableFuture<String> readMessageAsStringAsync() {
+		return readMessageAsync().thenApply(b -> new String(b));
+	}
+	
 	public int setMaxReadLength(int maxLen);  // don't even try to read a message claiming to be longer than the arg value
 	public int getMaxReadLength();            // returns current value of max read length
 
+	/**
+	 * Returns the handler's compression state.  Outgoing messages are sent uncompressed until
+	 * compressor().setCodec() selects a codec (normally one agreed on with the peer -- see
+	 * FrameCompressor.negotiate()).  Compressed incoming messages are always decompressed.
+	 */
+	public FrameCompressor compressor();
+
+	/**
+	 * Returns the handler's traffic counters.  Services should name themselves as the owner
+	 * (stats().setOwner()) so that their traffic is aggregated -- see TCPMessageHandlerStats.
+	 */
+	public TCPMessageHandlerStats stats();
+
 	/**
 	 * Sets the amount of time between an attempt to read from the stream and timing out if no data becomes available.
 	 * Note that because this can be a long time (e.g., tens of seconds, or more), the underlying socket may need to time out
@@ -55,6 +136,12 @@ public interface TCPMessageHandlerInterface {
 	 */
 	public boolean setNoDelay(boolean value) throws SocketException;
 	
+	/**
+	 * Applies the named socket option profile from the config file (see SocketOptionProfile).
+	 * Services normally use their loadablename() as the profile name.
+	 */
+	public void applySocketOptions(String profile) throws SocketException;
+	
 	/**
 	 * Closes the TCPMessageHandler and the underlying socket it wraps.
 	 */
@@ -0,0 +1,228 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters for message handlers.
+ * <p>
+ * Every handler keeps a TCPMessageHandlerStats of its own (see TCPMessageHandlerInterface.stats()).
+ * Each update to it is also applied to two aggregates kept in a process-wide registry: one for
+ * the remote IP address, created automatically, and one for the service that owns the handler,
+ * which the service names with setOwner().  The aggregates outlive the connections, so they
+ * show cumulative traffic.  forService() and forPeer() look them up, and services() and peers()
+ * list them.
+ * <p>
+ * Counters are LongAdders, so updating them is cheap even when many threads share an aggregate.
+ * Byte counts include frame headers.  Read and write times are the time spent in socket calls,
+ * so read time includes time spent waiting for the peer.
+ */
+public class TCPMessageHandlerStats {
+	private static final int HISTOGRAM_BUCKETS = 32;
+
+	private static final ConcurrentHashMap<String, TCPMessageHandlerStats> mServices = new ConcurrentHashMap<String, TCPMessageHandlerStats>();
+	private static final ConcurrentHashMap<String, TCPMessageHandlerStats> mPeers = new ConcurrentHashMap<String, TCPMessageHandlerStats>();
+
+	private final String mName;
+	private final TCPMessageHandlerStats mPeer;
+	private volatile TCPMessageHandlerStats mOwner;
+
+	private final LongAdder mFramesSent = new LongAdder();
+	private final LongAdder mBytesSent = new LongAdder();
+	private final LongAdder mFramesReceived = new LongAdder();
+	private final LongAdder mBytesReceived = new LongAdder();
+	private final LongAdder mWriteNanos = new LongAdder();
+	private final LongAdder mReadNanos = new LongAdder();
+	private final LongAdder mTimeouts = new LongAdder();
+	private final LongAdder mOversized = new LongAdder();
+	// bucket i counts frames whose payload length has i significant bits (so 0, 1, 2-3, 4-7, ...)
+	private final LongAdder[] mSentSizes = _newHistogram();
+	private final LongAdder[] mReceivedSizes = _newHistogram();
+
+	//--------------------------------------------------------------------------------------
+	// registry
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the aggregate for all handlers owned by the named service.
+	 */
+	public static TCPMessageHandlerStats forService(String service) {
+		return _lookup(mServices, service);
+	}
+
+	/**
+	 * Returns the aggregate for all connections with the given remote IP address.
+	 */
+	public static TCPMessageHandlerStats forPeer(String ip) {
+		return _lookup(mPeers, ip);
+	}
+
+	/**
+	 * Returns the service aggregates, sorted by service name.
+	 */
+	public static Map<String, TCPMessageHandlerStats> services() {
+		return new TreeMap<String, TCPMessageHandlerStats>(mServices);
+	}
+
+	/**
+	 * Returns the peer aggregates, sorted by IP address.
+	 */
+	public static Map<String, TCPMessageHandlerStats> peers() {
+		return new TreeMap<String, TCPMessageHandlerStats>(mPeers);
+	}
+
+	private static TCPMessageHandlerStats _lookup(ConcurrentHashMap<String, TCPMessageHandlerStats> map, String key) {
+		TCPMessageHandlerStats stats = map.get(key);
+		if ( stats == null ) {
+			TCPMessageHandlerStats newStats = new TCPMessageHandlerStats(key, null);
+			stats = map.putIfAbsent(key, newStats);
+			if ( stats == null ) stats = newStats;
+		}
+		return stats;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// per-connection use
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Creates the stats for a connection to the given remote IP address.
+	 */
+	static TCPMessageHandlerStats forConnection(String peerIP) {
+		return new TCPMessageHandlerStats(peerIP, forPeer(peerIP));
+	}
+
+	private TCPMessageHandlerStats(String name, TCPMessageHandlerStats peer) {
+		mName = name;
+		mPeer = peer;
+	}
+
+	/**
+	 * Names the service that owns this connection.  From now on, its traffic is also counted
+	 * in forService(service).  Has no effect on an aggregate.
+	 */
+	public void setOwner(String service) {
+		if ( mPeer != null ) mOwner = forService(service);
+	}
+
+	void frameSent(int payloadLength) {
+		mFramesSent.increment();
+		mBytesSent.add(payloadLength + 4);
+		mSentSizes[_bucket(payloadLength)].increment();
+		if ( mPeer != null ) mPeer.frameSent(payloadLength);
+		TCPMessageHandlerStats owner = mOwner;
+		if ( owner != null ) owner.frameSent(payloadLength);
+	}
+
+	void frameReceived(int payloadLength) {
+		mFramesReceived.increment();
+		mBytesReceived.add(payloadLength + 4);
+		mReceivedSizes[_bucket(payloadLength)].increment();
+		if ( mPeer != null ) mPeer.frameReceived(payloadLength);
+		TCPMessageHandlerStats owner = mOwner;
+		if ( owner != null ) owner.frameReceived(payloadLength);
+	}
+
+	void writeTime(long nanos) {
+		mWriteNanos.add(nanos);
+		if ( mPeer != null ) mPeer.writeTime(nanos);
+		TCPMessageHandlerStats owner = mOwner;
+		if ( owner != null ) owner.writeTime(nanos);
+	}
+
+	void readTime(long nanos) {
+		mReadNanos.add(nanos);
+		if ( mPeer != null ) mPeer.readTime(nanos);
+		TCPMessageHandlerStats owner = mOwner;
+		if ( owner != null ) owner.readTime(nanos);
+	}
+
+	void timeout() {
+		mTimeouts.increment();
+		if ( mPeer != null ) mPeer.timeout();
+		TCPMessageHandlerStats owner = mOwner;
+		if ( owner != null ) owner.timeout();
+	}
+
+	void oversized() {
+		mOversized.increment();
+		if ( mPeer != null ) mPeer.oversized();
+		TCPMessageHandlerStats owner = mOwner;
+		if ( owner != null ) owner.oversized();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// accessors
+	//--------------------------------------------------------------------------------------
+
+	public String name() { return mName; }
+	public long framesSent() { return mFramesSent.sum(); }
+	public long bytesSent() { return mBytesSent.sum(); }
+	public long framesReceived() { return mFramesReceived.sum(); }
+	public long bytesReceived() { return mBytesReceived.sum(); }
+	public long writeNanos() { return mWriteNanos.sum(); }
+	public long readNanos() { return mReadNanos.sum(); }
+	public long timeouts() { return mTimeouts.sum(); }
+	public long oversizedRejections() { return mOversized.sum(); }
+
+	/**
+	 * Returns the histogram of sent payload lengths.  Element i counts frames whose length
+	 * is in [2^(i-1), 2^i) (element 0 counts empty frames).
+	 */
+	public long[] sentSizeHistogram() {
+		return _sums(mSentSizes);
+	}
+
+	/**
+	 * Returns the histogram of received payload lengths, in the format of sentSizeHistogram().
+	 */
+	public long[] receivedSizeHistogram() {
+		return _sums(mReceivedSizes);
+	}
+
+	/**
+	 * A one line summary, followed by a line for each non-empty histogram.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("sent %d frames / %d bytes in %.1f msec, received %d frames / %d bytes in %.1f msec, %d timeouts, %d oversized",
+				framesSent(), bytesSent(), writeNanos() / 1e6,
+				framesReceived(), bytesReceived(), readNanos() / 1e6,
+				timeouts(), oversizedRejections()));
+		_appendHistogram(sb, "sent sizes", sentSizeHistogram());
+		_appendHistogram(sb, "received sizes", receivedSizeHistogram());
+		return sb.toString();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// helper routines
+	//--------------------------------------------------------------------------------------
+
+	private static LongAdder[] _newHistogram() {
+		LongAdder[] histogram = new LongAdder[HISTOGRAM_BUCKETS];
+		for ( int i=0; i<HISTOGRAM_BUCKETS; i++ ) histogram[i] = new LongAdder();
+		return histogram;
+	}
+
+	private static int _bucket(int length) {
+		return Math.min(HISTOGRAM_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(length));
+	}
+
+	private static long[] _sums(LongAdder[] histogram) {
+		long[] result = new long[histogram.length];
+		for ( int i=0; i<histogram.length; i++ ) result[i] = histogram[i].sum();
+		return result;
+	}
+
+	private static void _appendHistogram(StringBuilder sb, String label, long[] histogram) {
+		StringBuilder line = new StringBuilder();
+		for ( int i=0; i<histogram.length; i++ ) {
+			if ( histogram[i] == 0 ) continue;
+			line.append(' ').append(i == 0 ? "0" : "<" + (1L << i)).append(':').append(histogram[i]);
+		}
+		if ( line.length() > 0 ) sb.append("\n\t").append(label).append(':').append(line);
+	}
+}
@@ -5,11 +5,15 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import org.json.JSONObject;
 
+import edu.uw.cs.cse461.net.rpc.RPCCachePolicy;
+import edu.uw.cs.cse461.net.rpc.RPCCallContext;
 import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
 import edu.uw.cs.cse461.net.rpc.RPCService;
+import edu.uw.cs.cse461.net.rpc.RPCStreamWriter;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
@@ -24,7 +28,11 @@ public class DataXferRPCService extends DataXferServiceBase /*implements NetLoad
 	public static final String HEADER_TAG_KEY = "tag";
 	public static final String HEADER_XFERLENGTH_KEY = "xferlength";
 	public static final String DATA_KEY = "data";
+	public static final String CHUNK_DATA_KEY = "data";
 	private RPCCallableMethod dataxferrpc;
+	private RPCCallableMethod dataxferstream;
+	private RPCCallableMethod dataxferbinary;
+	private final int chunkSize;
 
 	public DataXferRPCService() throws Exception {
 		
@@ -32,7 +40,17 @@ public class DataXferRPCService extends DataXferServiceBase /*implements NetLoad
 
 		
 		dataxferrpc = new RPCCallableMethod(this, "_dataxfer");
-		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", dataxferrpc);
+		// the reply depends only on the request, so repeated requests can be answered from a cache
+		int cacheBytes = NetBase.theNetBase().config().getAsInt("dataxferrpc.cache.maxbytes", 0, 0);
+		RPCCachePolicy cachePolicy = cacheBytes == 0 ? null : new RPCCachePolicy().setMaxEntries(64).setMaxBytes(cacheBytes);
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", dataxferrpc, cachePolicy);
+
+		chunkSize = NetBase.theNetBase().config().getAsInt("dataxferrpc.chunksize", 65536, 1);
+		dataxferstream = new RPCCallableMethod(this::_dataxferStream);
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxferstream", dataxferstream);
+
+		dataxferbinary = new RPCCallableMethod(this, "_dataxferBinary");
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxferbinary", dataxferbinary);
 
 
 	}
@@ -55,4 +73,45 @@ public class DataXferRPCService extends DataXferServiceBase /*implements NetLoad
 		data.put(DATA_KEY, Base64.encodeBytes(new byte[dataLength]));
 		return args;
 	}
+
+	/**
+	 * Like _dataxfer(), but returns the data as binary attachments (see RPCCallContext), of at most
+	 * dataxferrpc.chunksize bytes each, rather than Base64 encoded in the JSON reply.  The reply is
+	 * just the header.
+	 */
+	public JSONObject _dataxferBinary(JSONObject args) throws Exception {
+		JSONObject header = args.getJSONObject(DataXferRPCService.HEADER_KEY);
+		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) 
+				|| !header.has(HEADER_XFERLENGTH_KEY) )
+			throw new Exception("Missing or incorrect header value: '" + header + "'");
+		
+		int dataLength = header.getInt(HEADER_XFERLENGTH_KEY);
+		// the attachments aren't modified, so they can all share one zero-filled buffer
+		byte[] chunk = new byte[Math.min(chunkSize, dataLength)];
+		RPCCallContext context = RPCCallContext.current();
+		for ( int sent=0; sent<dataLength; sent+=chunk.length ) {
+			context.attach(ByteBuffer.wrap(chunk, 0, Math.min(chunk.length, dataLength - sent)));
+		}
+		
+		header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
+		return new JSONObject().put(HEADER_KEY, header);
+	}
+
+	/**
+	 * Like _dataxfer(), but streams the data, dataxferrpc.chunksize bytes per chunk, so that neither
+	 * side has to hold all of it at once.  Each chunk is {"data": base64 bytes}.
+	 */
+	public void _dataxferStream(JSONObject args, RPCStreamWriter out) throws Exception {
+		JSONObject header = args.getJSONObject(DataXferRPCService.HEADER_KEY);
+		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) 
+				|| !header.has(HEADER_XFERLENGTH_KEY) )
+			throw new Exception("Missing or incorrect header value: '" + header + "'");
+		
+		int dataLength = header.getInt(HEADER_XFERLENGTH_KEY);
+		byte[] chunk = new byte[Math.min(chunkSize, dataLength)];
+		for ( int sent=0; sent<dataLength; sent+=chunk.length ) {
+			int len = Math.min(chunk.length, dataLength - sent);
+			out.write(new JSONObject().put(CHUNK_DATA_KEY, Base64.encodeBytes(chunk, 0, len)));
+		}
+	}
 }
\ No newline at end of file
@@ -5,17 +5,22 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
+import edu.uw.cs.cse461.net.tcpmessagehandler.SocketOptionProfile;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
 public class DataXferTCPMessageHandlerService extends DataXferServiceBase implements NetLoadableServiceInterface {
 	private static final String TAG="DataXferTCPMessageHandlerService";
+	private static final int SEND_BATCH_FRAMES = 64;
 
 
 	private ServerSocket mServerSocket;
@@ -28,6 +33,7 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 		}
 		int tcpPort = 0;
 		mServerSocket = new ServerSocket();
+		SocketOptionProfile.get(loadablename()).applyBeforeAccept(mServerSocket);
 		mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
 		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
@@ -42,13 +48,16 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 							// should really spawn a thread here, but the code is already complicated enough that we don't bother
 							TCPMessageHandler tcpMessageHandlerSocket = null;
 							try {
+								// the handler buffers what it reads, so the connection keeps one for its lifetime
+								tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+								tcpMessageHandlerSocket.stats().setOwner(loadablename());
+								tcpMessageHandlerSocket.applySocketOptions(loadablename());
+								tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+								tcpMessageHandlerSocket.setNoDelay(true);
+								
 								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
 								// because it has timed out on the read
 								while ( true ) {
-
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
 									
 									String header = tcpMessageHandlerSocket.readMessageAsString();
 									if ( ! header.equalsIgnoreCase(HEADER_STR))
@@ -58,7 +67,9 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 										throw new Exception("Invalid transferSize key");
 									int transferSizeValue = transferSize.getInt("transferSize");
 									int amtXferred = 0;
-									tcpMessageHandlerSocket.sendMessage(RESPONSE_OKAY_STR);
+									// frames are handed over in batches, so each write carries many of them
+									List<byte[]> batch = new ArrayList<byte[]>();
+									batch.add(RESPONSE_OKAY_BYTES);
 									
 									while (amtXferred < transferSizeValue) { 
 										
@@ -67,10 +78,14 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 											msgSize = transferSizeValue - amtXferred;
 										} 
 										
-										tcpMessageHandlerSocket.sendMessage(new byte[msgSize]);
+										batch.add(new byte[msgSize]);
 										amtXferred += msgSize;
-										
+										if (batch.size() == SEND_BATCH_FRAMES) {
+											tcpMessageHandlerSocket.sendMessages(batch);
+											batch.clear();
+										}
 									}
+									if (!batch.isEmpty()) tcpMessageHandlerSocket.sendMessages(batch);
 									// now respond
 									
 								}
@@ -110,6 +125,7 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 		StringBuilder sb = new StringBuilder(super.dumpState());
 		sb.append("\nListening on: ");
 		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
+		sb.append("\nTraffic: ").append(TCPMessageHandlerStats.forService(loadablename()));
 		sb.append("\n");
 		return sb.toString();
 	}
@@ -5,9 +5,12 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.tcpmessagehandler.SocketOptionProfile;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -26,6 +29,7 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 		String serverIP = IPFinder.localIP();
 		int tcpPort = 0;
 		mServerSocket = new ServerSocket();
+		SocketOptionProfile.get(loadablename()).applyBeforeAccept(mServerSocket);
 		mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
 		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
@@ -41,20 +45,23 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 							// should really spawn a thread here, but the code is already complicated enough that we don't bother
 							TCPMessageHandler tcpMessageHandlerSocket = null;
 							try {
+								// the handler buffers what it reads, so the connection keeps one for its lifetime
+								tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+								tcpMessageHandlerSocket.stats().setOwner(loadablename());
+								tcpMessageHandlerSocket.applySocketOptions(loadablename());
+								tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+								tcpMessageHandlerSocket.setNoDelay(true);
+								
 								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
 								// because it has timed out on the read
 								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
 									
 									String header = tcpMessageHandlerSocket.readMessageAsString();
 									if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
 										throw new Exception("Bad header: '" + header + "'");
 									String msg = tcpMessageHandlerSocket.readMessageAsString();
 									// now respond
-									tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
-									tcpMessageHandlerSocket.sendMessage(msg);
+									tcpMessageHandlerSocket.sendMessages(Arrays.asList(EchoServiceBase.RESPONSE_OKAY_BYTES, msg.getBytes()));
 								}
 							} catch (SocketTimeoutException e) {
 								Log.e(TAG, "Timed out waiting for data on tcp connection");
@@ -86,6 +93,7 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 		StringBuilder sb = new StringBuilder(super.dumpState());
 		sb.append("\nListening on: ");
 		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
+		sb.append("\nTraffic: ").append(TCPMessageHandlerStats.forService(loadablename()));
 		sb.append("\n");
 		return sb.toString();
 	}
@@ -201,4 +201,18 @@ public class ConfigManager extends Properties implements ConfigManagerInterface
 		}
 		return result;
 	}
+	
+	//-------------------------------------------------------------------------------------------------
+	//
+	// Profiles
+	// 
+	//-------------------------------------------------------------------------------------------------
+	
+	@Override
+	public String getProfileValue(String prefix, String profile, String option) {
+		String value = getProperty(prefix + "." + profile + "." + option);
+		if ( value == null || value.trim().isEmpty() ) value = getProperty(prefix + ".default." + option);
+		if ( value == null || value.trim().isEmpty() ) return null;
+		return value.trim();
+	}
 }
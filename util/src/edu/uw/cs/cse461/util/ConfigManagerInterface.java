@@ -49,6 +49,13 @@ public interface ConfigManagerInterface {
 	 */
 	public int getAsInt(String key, int defaultVal, int minimum, int maximum);
 	
+	/**
+	 * Looks up an option in a profile: a set of entries named prefix.profile.option.  Options a profile
+	 * doesn't set are taken from the profile named "default" (prefix.default.option).  Returns null if
+	 * neither has a non-empty value.  (E.g., getProfileValue("socket", "rpc", "nodelay").)
+	 */
+	public String getProfileValue(String prefix, String profile, String option);
+	
 	/**
 	 * Reads whitespace separated vectors of entries like jz.cse461.:password
 	 * @param fieldName